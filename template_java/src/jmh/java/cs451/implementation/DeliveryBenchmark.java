@@ -0,0 +1,126 @@
+package cs451.implementation;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Delivery data structures of the receive path, fed with MESSAGES messages: rounds of broadcasts where every host
+ * broadcasts once per round, and the message of round r depends on the messages of all the previous rounds. The
+ * messages arrive shuffled within windows of REORDER_WINDOW rounds, as they would after the URB. Every invocation
+ * starts from empty structures and delivers all the messages, the scores are per message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeliveryBenchmark {
+    private static final int REORDER_WINDOW = 4;
+    private static final int MESSAGES = 3072; //Multiple of every host count, so that every round is complete
+
+    @Param({"3", "8", "32", "128"})
+    int hosts;
+
+    Message[] arrivals;
+
+
+    @Setup
+    public void setup() {
+        int rounds = MESSAGES / this.hosts;
+        Message[] messages = new Message[rounds * this.hosts];
+        for (int round = 1; round <= rounds; round++) {
+            int[] clock = new int[this.hosts];
+            Arrays.fill(clock, round - 1);
+            for (int sender = 1; sender <= this.hosts; sender++) {
+                messages[(round - 1) * this.hosts + sender - 1] =
+                        new Message(round, Message.DATA_MESSAGE, (byte) Message.NO_SOURCE, (byte) sender, clock);
+            }
+        }
+        Random random = new Random(42);
+        int window = REORDER_WINDOW * this.hosts;
+        for (int start = 0; start < messages.length; start += window) {
+            for (int i = Math.min(start + window, messages.length) - 1; i > start; i--) {
+                int j = start + random.nextInt(i - start + 1);
+                Message swap = messages[i];
+                messages[i] = messages[j];
+                messages[j] = swap;
+            }
+        }
+        this.arrivals = messages;
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void fifoDelivery(Blackhole blackhole) {
+        Consumer<Message> deliver = blackhole::consume;
+        FifoDeliveryQueue queue = new FifoDeliveryQueue(this.hosts, deliver);
+        for (Message message : this.arrivals) {
+            queue.add(message);
+        }
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void causalDelivery(Blackhole blackhole) {
+        Consumer<Message> deliver = blackhole::consume;
+        CausalDeliveryQueue queue = new CausalDeliveryQueue(this.hosts, deliver);
+        for (Message message : this.arrivals) {
+            queue.add(message);
+        }
+    }
+
+
+    /**
+     * Majority of the hosts acknowledges every message, the last of these acks is the one which URB delivers it
+     */
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int urbAckCounting() {
+        int threshold = this.hosts / 2 + 1;
+        int delivered = 0;
+        UrbAckTable table = new UrbAckTable(this.hosts);
+        for (int acker = 1; acker <= threshold; acker++) {
+            for (Message message : this.arrivals) {
+                if (table.ack(message.getOriginalSenderId(), message.getValue(), acker) == threshold) {
+                    delivered++;
+                }
+            }
+        }
+        return delivered;
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int receiveWindowMarking() {
+        int received = 0;
+        ReceiveWindow[] windows = new ReceiveWindow[this.hosts];
+        for (int i = 0; i < this.hosts; i++) {
+            windows[i] = new ReceiveWindow();
+        }
+        for (Message message : this.arrivals) {
+            if (windows[message.getOriginalSenderId() - 1].mark(message.getValue())) {
+                received++;
+            }
+        }
+        return received;
+    }
+}
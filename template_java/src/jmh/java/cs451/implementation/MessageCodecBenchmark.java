@@ -0,0 +1,84 @@
+package cs451.implementation;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of the data messages (and the flyweight view used by the receive loop), for the host counts
+ * of the supported deployments. The vector clock of the messages has every entry set, which is the largest encoding.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageCodecBenchmark {
+    @Param({"3", "8", "32", "128"})
+    int hosts;
+
+    Message message;
+    int[] clock;
+    byte[] serialized;
+    ByteBuffer buffer;
+    ByteBuffer encoded;
+    MessageView view;
+
+
+    @Setup
+    public void setup() {
+        this.clock = new int[this.hosts];
+        for (int i = 0; i < this.hosts; i++) {
+            this.clock[i] = 1000 + i;
+        }
+        this.message = new Message(123456, Message.DATA_MESSAGE, (byte) 2, (byte) 1, this.clock);
+        this.serialized = Message.serializeMessage(this.message);
+        this.buffer = ByteBuffer.allocateDirect(Message.getMessageSize(this.hosts));
+        this.encoded = ByteBuffer.allocateDirect(this.serialized.length);
+        this.encoded.put(this.serialized).flip();
+        this.view = new MessageView(this.hosts);
+    }
+
+
+    @Benchmark
+    public byte[] serializeMessage() {
+        return Message.serializeMessage(this.message);
+    }
+
+
+    @Benchmark
+    public Message deserializeMessage() {
+        return Message.deserializeMessage(this.serialized, this.hosts);
+    }
+
+
+    @Benchmark
+    public int encodeDataMessage() {
+        this.buffer.clear();
+        Message.encodeDataMessage(this.buffer, 123456, Message.DATA_MESSAGE, (byte) 1, (byte) 2, this.clock);
+        return this.buffer.position();
+    }
+
+
+    @Benchmark
+    public int viewMessage() {
+        return this.view.wrap(this.encoded, 0).getSize();
+    }
+
+
+    @Benchmark
+    public Message viewToMessage() {
+        return this.view.wrap(this.encoded, 0).toMessage();
+    }
+}
@@ -0,0 +1,81 @@
+package cs451.implementation;
+
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Message.hashCode and Message.equals, alone and as keys of a hash set holding the messages of all the senders
+ * (the access pattern of the maps keyed by messages)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageLookupBenchmark {
+    private static final int MESSAGES_PER_SENDER = 1000;
+
+    @Param({"3", "8", "32", "128"})
+    int hosts;
+
+    HashSet<Message> messages;
+    Message[] probes;
+    Message[] copies;
+    int next;
+
+
+    @Setup
+    public void setup() {
+        this.messages = new HashSet<>();
+        this.probes = new Message[this.hosts * MESSAGES_PER_SENDER];
+        this.copies = new Message[this.probes.length];
+        int[] clock = new int[this.hosts];
+        for (int sender = 1; sender <= this.hosts; sender++) {
+            for (int seq = 1; seq <= MESSAGES_PER_SENDER; seq++) {
+                Message message = new Message(seq, Message.DATA_MESSAGE, (byte) Message.NO_SOURCE, (byte) sender, clock);
+                int index = (sender - 1) * MESSAGES_PER_SENDER + seq - 1;
+                this.probes[index] = message;
+                this.copies[index] = new Message(message);
+                this.messages.add(message);
+            }
+        }
+    }
+
+
+    private int nextIndex() {
+        int index = this.next;
+        this.next = index + 1 == this.probes.length ? 0 : index + 1;
+        return index;
+    }
+
+
+    @Benchmark
+    public int messageHashCode() {
+        return this.probes[this.nextIndex()].hashCode();
+    }
+
+
+    @Benchmark
+    public boolean messageEquals() {
+        int index = this.nextIndex();
+        return this.probes[index].equals(this.copies[index]);
+    }
+
+
+    @Benchmark
+    public boolean lookup() {
+        return this.messages.contains(this.copies[this.nextIndex()]);
+    }
+}
@@ -1,10 +1,15 @@
 package cs451;
 
+import cs451.implementation.DeliveryLogWriter;
+import cs451.implementation.Transport;
+import cs451.implementation.UdpTransport;
+
 import java.io.*;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
 
 
 public class Host {
@@ -13,9 +18,11 @@ public class Host {
     private int id;
     private String ip;
     private int port = -1;
-    private DatagramSocket socket;
+    private DatagramChannel channel;
+    private Transport transport;
+    private InetSocketAddress socketAddress;
     private String outputAddr;
-    private PrintWriter writer=null;
+    private DeliveryLogWriter writer=null;
 
     public boolean populate(String idString, String ipString, String portString) {
         try {
@@ -53,8 +60,21 @@ public class Host {
         return InetAddress.getByName(this.ip);
     }
 
-    public void setSocket() throws UnknownHostException, SocketException {
-        this.socket=new DatagramSocket(port,this.getAddress());
+    public void setSocket() throws IOException {
+        this.setSocket(false);
+    }
+
+    /**
+     * Opens and binds the (blocking) datagram channel of the host
+     * @param reusePort true if other channels may be bound to the same port (SO_REUSEPORT), e.g. for several readers
+     */
+    public void setSocket(boolean reusePort) throws IOException {
+        this.channel=DatagramChannel.open();
+        if(reusePort){
+            this.channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        this.channel.bind(new InetSocketAddress(this.getAddress(),port));
+        this.transport=new UdpTransport(this.channel);
         System.out.println("Created socket ");
     }
 
@@ -68,24 +88,59 @@ public class Host {
 
     public void setBroadcastLogger() {
         try {
-            this.writer= new PrintWriter(new BufferedOutputStream(new FileOutputStream(this.outputAddr)));
-        } catch (FileNotFoundException e) {
+            this.writer= new DeliveryLogWriter(this.outputAddr);
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
 
-    public void log(String logString){
-        this.writer.println(logString);
+    public void logBroadcast(int seq){
+        this.writer.logBroadcast(seq);
+    }
+
+    public void logDelivery(int originalSenderId, int seq){
+        this.writer.logDelivery(originalSenderId, seq);
+    }
+
+    /**
+     * @return number of events waiting for the writer of the output file (depth of the last stage of the pipeline)
+     */
+    public int getLogQueueDepth(){
+        return this.writer==null ? 0 : this.writer.getQueueDepth();
     }
 
     public void closeBroadcastLogger(){
-        this.writer.flush();
         this.writer.close();
     }
 
-    public DatagramSocket getSocket() {
-        return socket;
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return transport of the host (UDP once the socket is set)
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Replaces the transport of the host (e.g. by the endpoint of a simulated network)
+     * @param transport transport used to send and receive the datagrams of the host
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return resolved address of the host (resolved once)
+     */
+    public InetSocketAddress getSocketAddress() throws UnknownHostException {
+        if(this.socketAddress==null){
+            this.socketAddress=new InetSocketAddress(this.getAddress(), this.port);
+        }
+        return this.socketAddress;
     }
 
     public int getId() {
@@ -101,8 +156,11 @@ public class Host {
     }
 
     public void closeSocket(){
-        if(!this.socket.isClosed())
-            this.socket.close();
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
 }
@@ -2,28 +2,29 @@ package cs451;
 
 import cs451.implementation.*;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.net.SocketException;
+import java.io.IOException;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.stream.Collectors;
 
 
 public class Main {
 
-    private static void handleSignal(LcbHost source) {
+    private static void handleSignal(BroadcastHost source) {
         //immediately stop network packet processing
         System.out.println("Immediately stopping network packet processing.");
         source.shutdownHost();
 
         //write/flush output file if necessary
         System.out.println("Writing output.");
-        source.me.closeBroadcastLogger();
+        source.getMe().closeBroadcastLogger();
+        Trace.close();
         //source.closeSocket();
     }
 
-    private static void initSignalHandlers(LcbHost source) {
+    private static void initSignalHandlers(BroadcastHost source) {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> handleSignal(source)));
     }
 
@@ -74,36 +75,37 @@ public class Main {
         source.setBroadcastLogger();
 
         try {
-            source.setSocket();
+            source.setSocket(DatagramReceiver.READERS>1);
 
-        } catch (UnknownHostException | SocketException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
 
 
 
         //Read configuration information for properly setting perfect links (destination and number of messages to send)
-        Scanner scanner=null;
+        List<String> configLines=new ArrayList<>();
         try {
             System.out.println(parser.config());
-            scanner=new Scanner(new File(parser.config()));
-        } catch (FileNotFoundException e) {
+            for(String line: Files.readAllLines(Paths.get(parser.config()))){
+                if(!line.isBlank()){
+                    configLines.add(line.trim());
+                }
+            }
+        } catch (IOException e) {
             e.printStackTrace();
+            System.exit(1);
         }
 
-        assert scanner != null;
-        String configLine;
-        int MESSAGES_TO_SEND=scanner.nextInt();
-        int i=0;
-        while(i<source.getId()){
-            scanner.nextLine();
-            i++;
-        }
-        configLine=scanner.nextLine();
-        Set<Integer> dependencies = Arrays.stream(configLine.split(" "))
+        int MESSAGES_TO_SEND=Integer.parseInt(configLines.get(0).split("\\s+")[0]);
+        //FIFO configuration only holds the number of messages, LCB configuration has a dependencies line per process
+        //(blank lines are ignored, so every host takes the same decision)
+        boolean fifo=configLines.size()==1;
+        String configLine=!fifo && source.getId()<configLines.size() ? configLines.get(source.getId()) : "";
+        Set<Integer> dependencies = Arrays.stream(configLine.split("\\s+"))
+                .filter(dependency -> !dependency.isEmpty())
                 .map(Integer::parseInt)
                 .collect(Collectors.toSet());
-        scanner.close();
 
         //Remove myself from consideration
         dependencies.remove(source.getId());
@@ -116,16 +118,25 @@ public class Main {
         //Create perfect links to other hosts
         //Maps destinationID -> PerfectLink used to send to that destination
         HashMap <Integer, PerfectLink> perfectLinks=new HashMap<>(parser.hosts().size());
+        //Wheel, buffers and threads are shared by all the links
+        HostRuntime runtime=new HostRuntime(parser.hosts().size());
 
         //TODO: We don't filter out ourselves anymore, instead we use our perfect link to deliver
         //.filter(host -> host.getId() != parser.myId())
         for (Host host : parser.hosts()) {
-            perfectLinks.put(host.getId(), new PerfectLink(source, host));
+            try {
+                perfectLinks.put(host.getId(), new PerfectLink(source, host, parser.hosts().size(), runtime));
+            } catch (UnknownHostException e) {
+                e.printStackTrace();
+            }
         }
-        LinkHost linkHost=new LinkHost(source,perfectLinks,MESSAGES_TO_SEND);
+        LinkHost linkHost=new LinkHost(source,perfectLinks,MESSAGES_TO_SEND,runtime);
         UrbHost urbHost=new UrbHost(source,linkHost,MESSAGES_TO_SEND);
-        LcbHost lcbHost=new LcbHost(urbHost,dependSet);
-        initSignalHandlers(lcbHost);
+        BroadcastHost broadcastHost=fifo ? new FifoHost(urbHost) : new LcbHost(urbHost,dependSet);
+        initSignalHandlers(broadcastHost);
+        if(Metrics.DUMP_PATH!=null){
+            runtime.getMetrics().startDumping(runtime, Metrics.DUMP_PATH, Metrics.DUMP_INTERVAL);
+        }
         //boolean  doLogging=true;
         //System.out.println("TEST TEST");
         //int [] vc={1025,10000,30000};
@@ -136,9 +147,9 @@ public class Main {
         //System.out.println("Deserialized message"+deserializedMessage);
 
 
-        lcbHost.beginWorking(true);
+        broadcastHost.beginWorking(true);
         System.out.println("Broadcasting and delivering messages...\n");
-        lcbHost.beginBroadcasting(MESSAGES_TO_SEND);
+        broadcastHost.beginBroadcasting(MESSAGES_TO_SEND);
 
         /*This part was used for PerfectLink implementation */
 
@@ -0,0 +1,222 @@
+package cs451;
+
+import cs451.implementation.*;
+
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs N hosts in this JVM over a SimulatedNetwork (instead of UDP sockets, netem and one JVM per process), and
+ * reports the delivery throughput and the broadcast to delivery latency percentiles. Usage:
+ * <pre>
+ * java -cp bin/da_proc.jar cs451.Simulation [--hosts 5] [--messages 1000] [--fifo] [--causal]
+ *      [--loss 0.0] [--duplicate 0.0] [--reorder 0.0] [--delay 1] [--jitter 0] [--seed 1]
+ *      [--crash id] [--crash-after 500] [--timeout 60] [--payload 0]
+ * </pre>
+ * Hosts run the LCB (every host depends on all the others with --causal, on none otherwise), or the FIFO broadcast
+ * with --fifo. Every message carries payload bytes of payload (fragmented above Message.MAX_PAYLOAD_SIZE, the
+ * deliveries and the latencies are then counted per fragment), whose content is checked on delivery. The crashed host
+ * (if any) is crashed crash-after milliseconds after the start. The run ends once every correct host delivered all the
+ * messages of all the correct hosts, or after the timeout (in seconds).
+ */
+public class Simulation {
+
+    /**
+     * Host recording its broadcasts and deliveries in memory instead of the output file
+     */
+    private static class SimulatedHost extends Host {
+        final long[] broadcastTimes;
+        final SimulatedHost[] hosts;
+        final LatencyHistogram latencies;
+        final AtomicInteger delivered;
+        final AtomicIntegerArray deliveredFrom;
+
+
+        SimulatedHost(int messages, SimulatedHost[] hosts) {
+            this.broadcastTimes = new long[messages + 1];
+            this.hosts = hosts;
+            this.latencies = new LatencyHistogram();
+            this.delivered = new AtomicInteger();
+            this.deliveredFrom = new AtomicIntegerArray(hosts.length);
+        }
+
+
+        @Override
+        public void logBroadcast(int seq) {
+            this.broadcastTimes[seq] = System.nanoTime();
+        }
+
+
+        @Override
+        public void logDelivery(int originalSenderId, int seq) {
+            //The broadcast time was written before the message was sent, which happens before its delivery
+            long latency = System.nanoTime() - this.hosts[originalSenderId - 1].broadcastTimes[seq];
+            synchronized (this.latencies) {
+                this.latencies.record(TimeUnit.NANOSECONDS.toMicros(latency));
+            }
+            this.delivered.incrementAndGet();
+            this.deliveredFrom.incrementAndGet(originalSenderId - 1);
+        }
+
+
+        @Override
+        public void closeBroadcastLogger() {
+        }
+    }
+
+
+    private static String option(HashMap<String, String> options, String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+
+    public static void main(String[] args) throws InterruptedException, UnknownHostException {
+        HashMap<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                continue;
+            }
+            boolean flag = i + 1 == args.length || args[i + 1].startsWith("--");
+            options.put(args[i].substring(2), flag ? "true" : args[++i]);
+        }
+        int hostsNumber = Integer.parseInt(option(options, "hosts", "5"));
+        int messages = Integer.parseInt(option(options, "messages", "1000"));
+        boolean fifo = options.containsKey("fifo");
+        boolean causal = options.containsKey("causal");
+        int crashed = Integer.parseInt(option(options, "crash", "0"));
+        long crashAfter = Long.parseLong(option(options, "crash-after", "500"));
+        long timeout = Long.parseLong(option(options, "timeout", "60"));
+        int payloadSize = Integer.parseInt(option(options, "payload", "0"));
+        int fragments = Math.max(1, (payloadSize + Message.MAX_PAYLOAD_SIZE - 1) / Message.MAX_PAYLOAD_SIZE);
+        int broadcasts = messages * fragments;
+        SimulatedNetwork network = new SimulatedNetwork(hostsNumber,
+                Long.parseLong(option(options, "seed", "1")),
+                Double.parseDouble(option(options, "loss", "0")),
+                Double.parseDouble(option(options, "duplicate", "0")),
+                Double.parseDouble(option(options, "reorder", "0")),
+                Long.parseLong(option(options, "delay", "1")),
+                Long.parseLong(option(options, "jitter", "0")));
+
+        SimulatedHost[] hosts = new SimulatedHost[hostsNumber];
+        for (int id = 1; id <= hostsNumber; id++) {
+            hosts[id - 1] = new SimulatedHost(broadcasts, hosts);
+            hosts[id - 1].populate(String.valueOf(id), "127.0.0.1", String.valueOf(11000 + id));
+            network.attach(hosts[id - 1]);
+        }
+        BroadcastHost[] broadcastHosts = new BroadcastHost[hostsNumber];
+        ArrayList<HostRuntime> runtimes = new ArrayList<>();
+        for (SimulatedHost host : hosts) {
+            HostRuntime runtime = new HostRuntime(hostsNumber);
+            runtimes.add(runtime);
+            HashMap<Integer, PerfectLink> perfectLinks = new HashMap<>(hostsNumber);
+            for (SimulatedHost destination : hosts) {
+                perfectLinks.put(destination.getId(), new PerfectLink(host, destination, hostsNumber, runtime));
+            }
+            UrbHost urbHost = new UrbHost(host, new LinkHost(host, perfectLinks, broadcasts, runtime), broadcasts);
+            HashSet<Integer> dependencies = new HashSet<>();
+            for (int id = 1; causal && id <= hostsNumber; id++) {
+                if (id != host.getId()) {
+                    dependencies.add(id);
+                }
+            }
+            broadcastHosts[host.getId() - 1] = fifo ? new FifoHost(urbHost) : new LcbHost(urbHost, dependencies);
+        }
+
+        //The payload is shared by all the messages, it is never copied nor modified
+        ByteBuffer content = ByteBuffer.allocate(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            content.put(i, (byte) (i * 31 + 7));
+        }
+        ByteBuffer payload = content.asReadOnlyBuffer();
+        AtomicLong payloadBytes = new AtomicLong();
+        AtomicLong corrupted = new AtomicLong();
+        for (BroadcastHost broadcastHost : broadcastHosts) {
+            broadcastHost.addDeliveryListener(message -> {
+                payloadBytes.addAndGet(message.getPayloadSize());
+                if (!message.getPayload().equals(payload)) {
+                    corrupted.incrementAndGet();
+                }
+            });
+            broadcastHost.beginWorking(true);
+        }
+        long start = System.nanoTime();
+        for (BroadcastHost broadcastHost : broadcastHosts) {
+            Thread broadcaster = new Thread(() -> {
+                for (int i = 0; i < messages; i++) {
+                    try {
+                        broadcastHost.broadcast(payload);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "broadcaster-" + broadcastHost.getMe().getId());
+            broadcaster.setDaemon(true);
+            broadcaster.start();
+        }
+
+        //Wait until every correct host delivered every message of the correct hosts
+        int correct = crashed > 0 ? hostsNumber - 1 : hostsNumber;
+        long deadline = start + TimeUnit.SECONDS.toNanos(timeout);
+        boolean complete = false;
+        while (!complete && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            if (crashed > 0 && !network.isCrashed(crashed) && System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(crashAfter)) {
+                network.crash(crashed);
+            }
+            complete = true;
+            for (SimulatedHost host : hosts) {
+                for (int sender = 1; host.getId() != crashed && sender <= hostsNumber; sender++) {
+                    if (sender != crashed && host.deliveredFrom.get(sender - 1) < broadcasts) {
+                        complete = false;
+                    }
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        //Largest queue depth (over the hosts) and number of full offers (summed over the hosts) of every stage
+        HashMap<String, long[]> stages = new HashMap<>();
+        for (HostRuntime runtime : runtimes) {
+            for (PipelineStage<?> stage : runtime.getPipelineStages()) {
+                long[] metrics = stages.computeIfAbsent(stage.getName(), name -> new long[2]);
+                metrics[0] = Math.max(metrics[0], stage.getQueue().getMaxDepth());
+                metrics[1] += stage.getQueue().getFullOffers();
+            }
+        }
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        long delivered = 0;
+        for (SimulatedHost host : hosts) {
+            if (host.getId() != crashed) {
+                synchronized (host.latencies) {
+                    latencies.add(host.latencies);
+                }
+                delivered += host.delivered.get();
+            }
+        }
+        for (BroadcastHost broadcastHost : broadcastHosts) {
+            broadcastHost.shutdownHost();
+        }
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("hosts=%d messages=%d mode=%s crashed=%d complete=%b%n", hostsNumber, messages,
+                fifo ? "fifo" : causal ? "lcb-causal" : "lcb", crashed, complete);
+        System.out.printf("elapsed=%.3fs delivered=%d (at least %d expected) throughput=%.0f msgs/s%n", seconds, delivered,
+                (long) correct * correct * broadcasts, delivered / seconds);
+        System.out.printf("latency us: p50=%d p90=%d p99=%d p99.9=%d max=%d%n", latencies.getPercentile(50),
+                latencies.getPercentile(90), latencies.getPercentile(99), latencies.getPercentile(99.9), latencies.getMax());
+        System.out.printf("payload bytes delivered=%d corrupted payloads=%d%n", payloadBytes.get(), corrupted.get());
+        stages.forEach((name, metrics) -> System.out.printf("stage %s: max depth=%d full offers=%d%n", name, metrics[0], metrics[1]));
+        System.out.printf("datagrams: sent=%d dropped=%d duplicated=%d%n", network.getSent(), network.getDropped(),
+                network.getDuplicated());
+        Trace.close();
+        System.exit(complete ? 0 : 1);
+    }
+}
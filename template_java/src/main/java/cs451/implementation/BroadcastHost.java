@@ -0,0 +1,45 @@
+package cs451.implementation;
+
+import cs451.Host;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Broadcast abstraction run by the process (FIFO or localized causal broadcast on top of the URB)
+ */
+public interface BroadcastHost {
+
+    /**
+     * Starts the reception and the delivery of the messages
+     * @param doLogging true if the deliveries are written to the output of the host
+     */
+    void beginWorking(boolean doLogging);
+
+    /**
+     * Broadcasts the messages of this host (with no payload), returns once all of them were broadcast
+     * @param messagesToSendNum number of messages to broadcast
+     */
+    void beginBroadcasting(int messagesToSendNum);
+
+    /**
+     * Broadcasts a message carrying the payload, waiting until the congestion window of every link has room for it.
+     * The payload is not copied (the links send the bytes of the given buffer), so it must not be modified afterwards.
+     * Payloads larger than Message.MAX_PAYLOAD_SIZE are broadcast as several fragments (see FragmentAssembler).
+     * @param payload payload bytes, from the position to the limit of the buffer (at most FragmentAssembler.MAX_BROADCAST_SIZE)
+     * @return sequence number of the broadcast message (of its last fragment)
+     */
+    int broadcast(ByteBuffer payload) throws InterruptedException;
+
+    /**
+     * Registers the application to which the delivered messages are passed, the payload of a delivered message is a
+     * read-only view of the received bytes (see Message.getPayload), payloads of at most
+     * Message.PAYLOAD_COPY_THRESHOLD bytes are a copy of them. A fragmented payload is passed once complete, in a
+     * pooled buffer (or a mapped file, see FragmentAssembler) which is only valid during the call.
+     * @param listener called for every delivered message on the delivery thread, it must neither block nor broadcast
+     */
+    void addDeliveryListener(Consumer<Message> listener);
+
+    void shutdownHost();
+
+    Host getMe();
+}
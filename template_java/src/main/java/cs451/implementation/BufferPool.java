@@ -0,0 +1,59 @@
+package cs451.implementation;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of equally sized ByteBuffers (heap or direct) used for the datagrams which are sent and received, so that
+ * buffers are allocated once and recycled instead of being allocated per packet.
+ * The pool keeps at most capacity free buffers, buffers released above that are left to the garbage collector.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final boolean direct;
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+
+
+    /**
+     * @param bufferSize size of every buffer of the pool (in bytes)
+     * @param capacity maximal number of free buffers kept by the pool
+     * @param direct true if the buffers are allocated outside of the heap (ByteBuffer.allocateDirect)
+     */
+    public BufferPool(int bufferSize, int capacity, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.freeBuffers = new ArrayBlockingQueue<>(capacity);
+    }
+
+
+    /**
+     * @return cleared buffer, taken from the pool if one is free, newly allocated otherwise
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = this.freeBuffers.poll();
+        if (buffer == null) {
+            buffer = this.direct ? ByteBuffer.allocateDirect(this.bufferSize) : ByteBuffer.allocate(this.bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+
+    /**
+     * Returns the buffer to the pool
+     * @param buffer buffer which was acquired from this pool and is not used anymore
+     */
+    public void release(ByteBuffer buffer) {
+        this.freeBuffers.offer(buffer);
+    }
+
+
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+
+    public boolean isDirect() {
+        return this.direct;
+    }
+}
@@ -0,0 +1,174 @@
+package cs451.implementation;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Causal delivery engine of the LCB: URB delivered messages wait here until every entry of their vector clock is
+ * covered by the messages delivered so far.
+ * Since the clock of the message seq of a sender counts seq-1 messages of that sender, only the head of each sender
+ * (message with the next expected sequence number) can be deliverable. Pending messages are therefore kept per
+ * original sender in a ring indexed by the sequence number, and a blocked head is registered on the first clock entry
+ * which blocks it. When the delivered count of a sender advances, only the heads registered on that sender are checked
+ * again, and deliveries cascade immediately. Every message is checked once on arrival and once per entry it waits for,
+ * instead of at every pass over the whole history.
+ * With metrics set, the queue reports the number of messages waiting in it, and the time each message waited (from its
+ * URB delivery to its causal delivery).
+ */
+public class CausalDeliveryQueue {
+    private static final int INITIAL_CAPACITY = 64; //Needs to be a power of two
+
+    private final int[] delivered;
+    private final Message[][] pending;
+    private final int[][] blockedOn;
+    private final int[] blockedCount;
+    private final int[] worklist;
+    private final Consumer<Message> deliver;
+    private int waiting;
+    private Metrics.Histogram blockedTime;
+
+
+    /**
+     * @param hostsNumber number of hosts (length of the vector clocks)
+     * @param deliver called for every message in causal order, by the thread which added the message completing it
+     */
+    public CausalDeliveryQueue(int hostsNumber, Consumer<Message> deliver) {
+        this.delivered = new int[hostsNumber];
+        this.pending = new Message[hostsNumber][INITIAL_CAPACITY];
+        this.blockedOn = new int[hostsNumber][hostsNumber];
+        this.blockedCount = new int[hostsNumber];
+        //A sender is at most once in the worklist or registered as blocked, so the worklist never exceeds hostsNumber
+        this.worklist = new int[hostsNumber];
+        this.deliver = deliver;
+    }
+
+
+    /**
+     * Adds the URB delivered message, and delivers every message which became deliverable thanks to it
+     * @param message URB delivered message
+     */
+    public synchronized void add(Message message) {
+        int sender = message.getOriginalSenderId() - 1;
+        int seq = message.getValue();
+        if (seq <= this.delivered[sender]) {
+            return;
+        }
+        Message[] ring = this.pending[sender];
+        if (seq - this.delivered[sender] > ring.length) {
+            ring = this.grow(sender, seq);
+        }
+        int index = seq & (ring.length - 1);
+        if (ring[index] != null) {
+            return;
+        }
+        ring[index] = message;
+        this.waiting++;
+        if (this.blockedTime != null) {
+            message.setTimestamp(System.nanoTime());
+        }
+        if (seq == this.delivered[sender] + 1) {
+            this.cascade(sender);
+        }
+    }
+
+
+    /**
+     * Registers the metrics of the queue: the number of waiting messages (causal.depth) and the time the messages
+     * waited (causal.blocked.us)
+     * @param metrics metrics of the host
+     */
+    public void setMetrics(Metrics metrics) {
+        this.blockedTime = metrics.histogram("causal.blocked.us");
+        metrics.gauge("causal.depth", this::getWaiting);
+    }
+
+
+    /**
+     * @return number of messages waiting for their causal dependencies (approximate when read by another thread)
+     */
+    public int getWaiting() {
+        return this.waiting;
+    }
+
+
+    /**
+     * Delivers the heads of the senders in the worklist as long as they are deliverable, starting from the given sender
+     */
+    private void cascade(int firstSender) {
+        int size = 0;
+        this.worklist[size++] = firstSender;
+        while (size > 0) {
+            int sender = this.worklist[--size];
+            Message[] ring = this.pending[sender];
+            int index = (this.delivered[sender] + 1) & (ring.length - 1);
+            Message head = ring[index];
+            if (head == null) {
+                continue;
+            }
+            int blocking = this.blockingEntry(head);
+            if (blocking >= 0) {
+                this.blockedOn[blocking][this.blockedCount[blocking]++] = sender;
+                continue;
+            }
+            ring[index] = null;
+            this.delivered[sender]++;
+            this.waiting--;
+            if (this.blockedTime != null) {
+                this.blockedTime.recordSince(head.getTimestamp());
+            }
+            this.deliver.accept(head);
+            //Next message of the sender, and the heads which were waiting for this sender
+            this.worklist[size++] = sender;
+            for (int i = 0; i < this.blockedCount[sender]; i++) {
+                this.worklist[size++] = this.blockedOn[sender][i];
+            }
+            this.blockedCount[sender] = 0;
+        }
+    }
+
+
+    /**
+     * @return index of the first entry of the clock of the message which is not covered by the delivered messages,
+     * or -1 if the message is deliverable
+     */
+    private int blockingEntry(Message message) {
+        int[] clock = message.getVectorClock();
+        for (int i = 0; i < clock.length; i++) {
+            if (clock[i] > this.delivered[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Doubles the ring of the pending messages of the sender until it can hold the given sequence number
+     * @throws IllegalArgumentException if the sequence number is more than Message.MAX_SEQUENCE_GAP ahead
+     */
+    private Message[] grow(int sender, int seq) {
+        Message[] oldRing = this.pending[sender];
+        int base = this.delivered[sender];
+        if (seq - base > Message.MAX_SEQUENCE_GAP) {
+            throw new IllegalArgumentException("Sequence number " + seq + " is more than " + Message.MAX_SEQUENCE_GAP + " ahead of " + base);
+        }
+        int newLength = oldRing.length;
+        while (newLength < seq - base) {
+            newLength <<= 1;
+        }
+        Message[] ring = new Message[newLength];
+        for (int i = base + 1; i <= base + oldRing.length; i++) {
+            ring[i & (newLength - 1)] = oldRing[i & (oldRing.length - 1)];
+        }
+        this.pending[sender] = ring;
+        return ring;
+    }
+
+
+    /**
+     * @return copy of the number of messages delivered from each sender
+     */
+    public synchronized int[] getDeliveredClock() {
+        return Arrays.copyOf(this.delivered, this.delivered.length);
+    }
+}
@@ -0,0 +1,155 @@
+package cs451.implementation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AIMD congestion window of a PerfectLink, which bounds the number of data messages in flight (sent and not yet
+ * acknowledged) towards the destination:
+ * <ul>
+ *     <li> The window grows by one message per acknowledged message while below the slow start threshold, and by one
+ *     message per window of acknowledged messages above it (additive increase).
+ *     <li> The first retransmission of a message halves the window (multiplicative decrease), at most once per
+ *     retransmission timeout, so the losses of one burst are counted once.
+ * </ul>
+ * Only the broadcaster waits for room in the window (relays are sent by the receive path, which never blocks, but they
+ * are counted in flight). A link which didn't acknowledge anything for STALL_TIMEOUT while having messages in flight
+ * (e.g. its destination crashed) is considered stalled and lets a single message through (a probe), then blocks the
+ * broadcaster again for the next STALL_TIMEOUT: a single crashed process doesn't stop the broadcast although the URB
+ * only needs a majority, and a slow destination which is not suspected isn't flooded either. The window of a link
+ * whose destination is suspected by the FailureDetector is bypassed, so the broadcaster doesn't even wait for the stall.
+ */
+public class CongestionWindow {
+    private static final int INITIAL_WINDOW = 64; //Magic const
+    private static final int MIN_WINDOW = 16; //Magic const
+    private static final int MAX_WINDOW = 1 << 16;
+    private static final long STALL_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    private final ReentrantLock lock;
+    private final Condition hasRoom;
+    private double window;
+    private double slowStartThreshold;
+    private int inFlight;
+    private long lastProgress;
+    private long lastDecrease;
+    private boolean bypassed;
+
+
+    public CongestionWindow() {
+        this.lock = new ReentrantLock();
+        this.hasRoom = this.lock.newCondition();
+        this.window = INITIAL_WINDOW;
+        this.slowStartThreshold = MAX_WINDOW;
+        this.inFlight = 0;
+        this.lastDecrease = System.nanoTime();
+    }
+
+
+    /**
+     * Called when a new data message is sent over the link
+     */
+    public void onSend() {
+        this.lock.lock();
+        try {
+            if (this.inFlight++ == 0) {
+                this.lastProgress = System.nanoTime();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * Called when data messages are acknowledged: grows the window and wakes up the broadcaster
+     * @param acknowledged number of messages acknowledged for the first time
+     */
+    public void onAck(int acknowledged) {
+        if (acknowledged == 0) {
+            return;
+        }
+        this.lock.lock();
+        try {
+            this.inFlight -= acknowledged;
+            this.lastProgress = System.nanoTime();
+            for (int i = 0; i < acknowledged; i++) {
+                this.window += this.window < this.slowStartThreshold ? 1 : 1 / this.window;
+            }
+            this.window = Math.min(this.window, MAX_WINDOW);
+            this.hasRoom.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * Called on the first retransmission of a message: halves the window
+     * @param retransmissionTimeout current retransmission timeout of the link (in milliseconds)
+     */
+    public void onLoss(long retransmissionTimeout) {
+        this.lock.lock();
+        try {
+            long now = System.nanoTime();
+            if (now - this.lastDecrease < TimeUnit.MILLISECONDS.toNanos(retransmissionTimeout)) {
+                return;
+            }
+            this.lastDecrease = now;
+            this.slowStartThreshold = Math.max(this.window / 2, MIN_WINDOW);
+            this.window = this.slowStartThreshold;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * @param bypassed true if the broadcaster shouldn't wait for the room in the window (e.g. destination suspected)
+     */
+    public void setBypassed(boolean bypassed) {
+        this.lock.lock();
+        try {
+            this.bypassed = bypassed;
+            this.hasRoom.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * Blocks until the window has room for one more message, or the link is bypassed, or stalled (then one probe goes
+     * through per STALL_TIMEOUT)
+     */
+    public void awaitRoom() throws InterruptedException {
+        this.lock.lock();
+        try {
+            while (!this.bypassed && this.inFlight >= (int) this.window) {
+                long now = System.nanoTime();
+                long remaining = this.lastProgress + STALL_TIMEOUT - now;
+                if (remaining <= 0) {
+                    //The probe restarts the stall timeout, the next message waits for an ack or the next timeout
+                    this.lastProgress = now;
+                    return;
+                }
+                this.hasRoom.awaitNanos(remaining);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return current size of the window (in messages)
+     */
+    public int getWindow() {
+        this.lock.lock();
+        try {
+            return (int) this.window;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package cs451.implementation;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Receive engine of a host, which separates draining the socket from processing the received datagrams:
+ * <ul>
+ *     <li> Reader threads (one per channel) only receive datagrams into free buffers of a bounded ring of direct
+ *     buffers, and hand the filled buffers over to the dispatcher stage (see PipelineStage).
+ *     <li> The dispatcher stage decodes the datagrams and processes their messages (link and URB bookkeeping,
+ *     relaying), then returns the buffers to the ring. Small payloads are copied out of the buffer when their message
+ *     is kept (see MessageView.toMessage), so a buffer is only retained by the dispatcher when a kept message holds a
+ *     payload larger than Message.PAYLOAD_COPY_THRESHOLD as a slice of it (zero-copy delivery). Such a buffer is
+ *     replaced in the ring by a spare buffer, spares are carved out of direct allocations of SPARE_BLOCK_SIZE buffers.
+ * </ul>
+ * Readers are therefore never stalled behind the processing of a datagram, and a burst of datagrams is absorbed by the
+ * ring (and only then by the kernel receive buffer, which is enlarged as well). If all the buffers of the ring are
+ * waiting for the dispatcher, readers block until one is returned.
+ * With more than one reader (cs451.readers system property), the additional channels are bound to the same port with
+ * SO_REUSEPORT, and the kernel spreads the incoming datagrams among the channels.
+ */
+public class DatagramReceiver {
+    public static final int READERS = Integer.getInteger("cs451.readers", 1);
+    private static final int RING_SIZE = 256; //Magic const
+    private static final int SPARE_BLOCK_SIZE = 16; //Magic const
+    private static final int RECEIVE_BUFFER_SIZE = 4 << 20; //Magic const
+
+    private final DatagramChannel[] channels;
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+    private final PipelineStage<ByteBuffer> dispatchStage;
+    private final Transport.Dispatcher dispatcher;
+    private final int datagramSize;
+    //Only accessed by the dispatcher thread
+    private ByteBuffer spareBlock;
+    private volatile boolean running;
+
+
+    /**
+     * @param channel bound channel of the host (also used for sending)
+     * @param datagramSize size of the largest datagram which can be received
+     * @param dispatcher called by the dispatcher thread for every received datagram (buffer positioned at its start,
+     *                   limit at its end), the buffer is reused after the call returns unless the dispatcher retains it
+     */
+    public DatagramReceiver(DatagramChannel channel, int datagramSize, Transport.Dispatcher dispatcher) throws IOException {
+        this.dispatcher = dispatcher;
+        this.datagramSize = datagramSize;
+        this.channels = new DatagramChannel[Math.max(1, READERS)];
+        this.channels[0] = channel;
+        InetSocketAddress address = (InetSocketAddress) channel.getLocalAddress();
+        for (int i = 1; i < this.channels.length; i++) {
+            this.channels[i] = DatagramChannel.open();
+            this.channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            this.channels[i].bind(address);
+        }
+        for (DatagramChannel readerChannel : this.channels) {
+            readerChannel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        }
+
+        //Ring buffers are slices of a single direct allocation
+        this.freeBuffers = new ArrayBlockingQueue<>(RING_SIZE);
+        this.dispatchStage = new PipelineStage<>("receive-dispatcher", RING_SIZE, this::dispatch);
+        ByteBuffer ring = ByteBuffer.allocateDirect(RING_SIZE * datagramSize);
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring.limit((i + 1) * datagramSize).position(i * datagramSize);
+            this.freeBuffers.add(ring.slice());
+        }
+    }
+
+
+    /**
+     * Starts the reader threads and the dispatcher thread
+     * @param runtime runtime which owns the threads
+     */
+    public void start(HostRuntime runtime) {
+        this.running = true;
+        for (int i = 0; i < this.channels.length; i++) {
+            DatagramChannel channel = this.channels[i];
+            runtime.startStage("receive-reader-" + i, () -> this.read(channel));
+        }
+        this.dispatchStage.start(runtime);
+    }
+
+
+    private void read(DatagramChannel channel) {
+        while (this.running) {
+            try {
+                ByteBuffer buffer = this.freeBuffers.take();
+                buffer.clear();
+                if (channel.receive(buffer) == null) {
+                    this.freeBuffers.offer(buffer);
+                    continue;
+                }
+                buffer.flip();
+                this.dispatchStage.put(buffer);
+            } catch (InterruptedException | ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    /**
+     * Handles the received datagram, run by the dispatcher stage
+     */
+    private void dispatch(ByteBuffer buffer) {
+        boolean retained = false;
+        try {
+            retained = this.dispatcher.dispatch(buffer);
+        } finally {
+            this.freeBuffers.offer(retained ? this.spareBuffer() : buffer);
+        }
+    }
+
+
+    /**
+     * @return new buffer replacing a retained buffer of the ring
+     */
+    private ByteBuffer spareBuffer() {
+        if (this.spareBlock == null || !this.spareBlock.hasRemaining()) {
+            this.spareBlock = ByteBuffer.allocateDirect(SPARE_BLOCK_SIZE * this.datagramSize);
+        }
+        int position = this.spareBlock.position();
+        this.spareBlock.limit(position + this.datagramSize);
+        ByteBuffer spare = this.spareBlock.slice();
+        this.spareBlock.limit(this.spareBlock.capacity()).position(position + this.datagramSize);
+        return spare;
+    }
+
+
+    /**
+     * Stops the threads of the receiver and closes the additional reader channels. No thread is interrupted, as
+     * interrupting a thread blocked in a channel operation closes the channel (the dispatcher also sends relays over
+     * the channel of the host): the dispatcher stops after the datagram it handles, and the reader of the channel of
+     * the host after the next datagram it receives.
+     */
+    public void shutdown() {
+        this.running = false;
+        this.dispatchStage.shutdown();
+        for (int i = 1; i < this.channels.length; i++) {
+            try {
+                this.channels[i].close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package cs451.implementation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Output of the broadcast and delivery events of the host.
+ * Logging threads only put the event, packed into a long (type, sender, sequence number), into a bounded lock-free
+ * multi-producer queue. A dedicated writer thread drains the queue and formats the lines ("b seq" and "d sender seq")
+ * digit by digit into a direct buffer of whole lines, which is written to the output file (FileChannel.write, without
+ * an intermediate copy) whenever it is full and whenever the queue is drained. The file therefore always ends with a
+ * whole line, and the lines reach the page cache within a millisecond, so they survive the termination of the process
+ * (even by SIGKILL). On close the queue is drained and the file is forced to the disk.
+ * The queue is a LongRing of one long per event, so producers claim slots with a single CAS and the consumer never
+ * locks. Producers spin only if the ring is full, and only while the writer is alive: once it failed (the output
+ * can't be written anymore), events are dropped.
+ */
+public class DeliveryLogWriter {
+    private static final int QUEUE_CAPACITY = 1 << 16; //Needs to be a power of two
+    private static final int WRITE_BUFFER_SIZE = 64 << 10; //Lines written to the file by a single write call at most
+    private static final int MAX_LINE_SIZE = 24; //"d " + 3 digit sender + " " + 10 digit sequence number + "\n"
+    private static final long IDLE_PARK_NANOS = 1_000_000; //Magic const
+    private static final long BROADCAST = 0;
+    private static final long DELIVERY = 1;
+
+    private final FileChannel file;
+    private final LongRing events;
+    private final Thread writer;
+    private final ByteBuffer lines;
+    private volatile boolean closing;
+    private volatile boolean failed;
+    private boolean closed;
+
+
+    /**
+     * Creates (or truncates) the output file and starts the writer thread
+     * @param outputPath path of the output file
+     */
+    public DeliveryLogWriter(String outputPath) throws IOException {
+        this.file = FileChannel.open(Paths.get(outputPath), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.events = new LongRing(QUEUE_CAPACITY, 1);
+        this.lines = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        this.writer = new Thread(this::write, "delivery-log-writer");
+        this.writer.start();
+    }
+
+
+    /**
+     * Logs the broadcast of my message
+     * @param seq sequence number of the broadcast message
+     */
+    public void logBroadcast(int seq) {
+        this.offer(BROADCAST << 40 | (seq & 0xffffffffL));
+    }
+
+
+    /**
+     * Logs the delivery of the message
+     * @param originalSenderId id of the process which broadcast the message
+     * @param seq sequence number of the delivered message
+     */
+    public void logDelivery(int originalSenderId, int seq) {
+        this.offer(DELIVERY << 40 | (long) (originalSenderId & 0xff) << 32 | (seq & 0xffffffffL));
+    }
+
+
+    private void offer(long event) {
+        while (!this.closing && !this.failed && !this.events.offer(event)) {
+            Thread.onSpinWait(); //Queue is full, wait for the writer
+        }
+    }
+
+
+    /**
+     * @return number of events waiting in the queue (approximate while events are logged)
+     */
+    public int getQueueDepth() {
+        return this.events.getDepth();
+    }
+
+
+    /**
+     * Writes every event available in the queue to the file
+     * @return number of written events
+     */
+    private int drain() throws IOException {
+        int written = 0;
+        for (long position = this.events.peek(); position >= 0; position = this.events.peek()) {
+            long event = this.events.get(position, 0);
+            this.events.release(position);
+            this.writeLine(event);
+            written++;
+        }
+        if (written > 0) {
+            this.flushLines();
+        }
+        return written;
+    }
+
+
+    private void writeLine(long event) throws IOException {
+        if (this.lines.remaining() < MAX_LINE_SIZE) {
+            this.flushLines();
+        }
+        if ((event >>> 40) == DELIVERY) {
+            this.lines.put((byte) 'd').put((byte) ' ');
+            this.putDigits((int) (event >>> 32) & 0xff);
+        } else {
+            this.lines.put((byte) 'b');
+        }
+        this.lines.put((byte) ' ');
+        this.putDigits((int) event);
+        this.lines.put((byte) '\n');
+    }
+
+
+    /**
+     * Writes the buffered lines to the file
+     */
+    private void flushLines() throws IOException {
+        this.lines.flip();
+        while (this.lines.hasRemaining()) {
+            this.file.write(this.lines);
+        }
+        this.lines.clear();
+    }
+
+
+    /**
+     * Writes the decimal digits of the (non negative) number into the buffer of the lines
+     */
+    private void putDigits(int number) {
+        long value = number & 0xffffffffL;
+        int digits = 1;
+        for (long bound = 10; bound <= value; bound *= 10) {
+            digits++;
+        }
+        int end = this.lines.position() + digits;
+        for (int position = end - 1; position >= end - digits; position--) {
+            this.lines.put(position, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        this.lines.position(end);
+    }
+
+
+    private void write() {
+        try {
+            while (!this.closing) {
+                if (this.drain() == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            //Producers must not wait for a writer which is gone (unless it stopped for close, which drains the queue)
+            if (!this.closing) {
+                this.failed = true;
+            }
+        }
+    }
+
+
+    /**
+     * Stops accepting events, writes the ones still in the queue, forces the file to the disk and closes it
+     */
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.closing = true;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join();
+            if (!this.failed) {
+                this.drain();
+                this.file.force(true);
+            }
+            this.file.close();
+        } catch (InterruptedException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package cs451.implementation;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Delivered watermarks of all the processes, used to find the messages which were URB delivered everywhere (stable
+ * messages), whose per-message state can then be dropped.
+ * The delivered watermark of a process for an original sender is the highest sequence number such that the process
+ * URB delivered every message of the sender up to it. The own watermarks are tracked here from the URB deliveries, the
+ * watermarks of the other processes are piggybacked on the ack messages they send (every ack of a stream carries the
+ * watermark for the original sender of the stream). Watermarks only grow, so out of date acks are harmless.
+ * The stable watermark of an original sender is the minimum of the watermarks of the processes which are not suspected
+ * by the FailureDetector, so that a crashed process doesn't stop the collection of the per-message state forever. A
+ * message which is stable without a suspected process is not known to be had by it: the watermarks of all the
+ * processes are kept, and a released message is only known to be had by the processes whose watermark covers it (see
+ * LinkHost.hasMessage), so a falsely suspected process still gets the relays it misses.
+ */
+public class DeliveryWatermarks {
+    private final int hostsNumber;
+    private final int myId;
+    //For each original sender: messages URB delivered by me
+    private final ReceiveWindow[] delivered;
+    //Watermark of process p for original sender o at index (o-1)*hostsNumber + (p-1)
+    private final AtomicIntegerArray watermarks;
+    private FailureDetector failureDetector;
+
+
+    /**
+     * @param hostsNumber number of hosts
+     * @param myId id of this host
+     */
+    public DeliveryWatermarks(int hostsNumber, int myId) {
+        this.hostsNumber = hostsNumber;
+        this.myId = myId;
+        this.delivered = new ReceiveWindow[hostsNumber];
+        for (int i = 0; i < hostsNumber; i++) {
+            this.delivered[i] = new ReceiveWindow();
+        }
+        this.watermarks = new AtomicIntegerArray(hostsNumber * hostsNumber);
+    }
+
+
+    /**
+     * @param failureDetector failure detector of the host, whose suspected processes don't hold the stable watermarks
+     *                        back
+     */
+    public void setFailureDetector(FailureDetector failureDetector) {
+        this.failureDetector = failureDetector;
+    }
+
+
+    /**
+     * Records the URB delivery of the message by this host
+     * @param originalSenderId id of the process which originally sent the message
+     * @param seq sequence number of the message
+     * @return true if the own watermark for the original sender advanced
+     */
+    public boolean markDelivered(int originalSenderId, int seq) {
+        ReceiveWindow window = this.delivered[originalSenderId - 1];
+        window.mark(seq);
+        return this.update(originalSenderId, this.myId, window.getCumulative());
+    }
+
+
+    /**
+     * Records the watermark of the process (typically piggybacked on its ack)
+     * @param originalSenderId id of the original sender the watermark refers to
+     * @param processId id of the process which has the watermark
+     * @param watermark delivered watermark of the process
+     * @return true if the known watermark of the process advanced
+     */
+    public boolean update(int originalSenderId, int processId, int watermark) {
+        int index = (originalSenderId - 1) * this.hostsNumber + processId - 1;
+        int current;
+        do {
+            current = this.watermarks.get(index);
+            if (watermark <= current) {
+                return false;
+            }
+        } while (!this.watermarks.compareAndSet(index, current, watermark));
+        return true;
+    }
+
+
+    /**
+     * @param originalSenderId id of the original sender
+     * @return own delivered watermark for the original sender
+     */
+    public int getDelivered(int originalSenderId) {
+        return this.watermarks.get((originalSenderId - 1) * this.hostsNumber + this.myId - 1);
+    }
+
+
+    /**
+     * @param originalSenderId id of the original sender
+     * @param processId id of the process
+     * @return known delivered watermark of the process for the original sender
+     */
+    public int getWatermark(int originalSenderId, int processId) {
+        return this.watermarks.get((originalSenderId - 1) * this.hostsNumber + processId - 1);
+    }
+
+
+    /**
+     * @param originalSenderId id of the original sender
+     * @return highest sequence number such that every message of the sender up to it was delivered by every process
+     * which is not suspected
+     */
+    public int getStable(int originalSenderId) {
+        int base = (originalSenderId - 1) * this.hostsNumber;
+        int stable = Integer.MAX_VALUE;
+        for (int p = 0; p < this.hostsNumber; p++) {
+            if (this.failureDetector == null || !this.failureDetector.isSuspected(p + 1)) {
+                stable = Math.min(stable, this.watermarks.get(base + p));
+            }
+        }
+        return stable;
+    }
+}
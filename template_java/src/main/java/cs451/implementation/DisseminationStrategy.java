@@ -0,0 +1,48 @@
+package cs451.implementation;
+
+/**
+ * Decides to which participants a LinkHost relays the messages of other original senders. Whatever the strategy,
+ * uniform agreement holds: a message is URB delivered only once the majority of the participants is known to have it
+ * (they relayed it, or acknowledged it), so at least one correct participant has it, and every strategy makes sure
+ * that a participant which has a message eventually relays it to every participant not known to have it.
+ * The strategy is selected with the cs451.dissemination system property:
+ * <ul>
+ *     <li> eager - every message is relayed to all the participants on its first reception (O(N^2) data messages)
+ *     <li> lazy - messages are relayed only to the participants which did not acknowledge them after the relay timeout
+ *     <li> gossip - messages are relayed to cs451.fanout random participants on their first reception, and to the
+ *     participants which did not acknowledge them after the relay timeout
+ * </ul>
+ * The relay timeout (in milliseconds) is set with the cs451.relayTimeout system property.
+ */
+public interface DisseminationStrategy {
+    int DEFAULT_FANOUT = 3;
+    int DEFAULT_RELAY_TIMEOUT = 500;
+
+
+    /**
+     * Called once per message of another original sender, when the message is received for the first time
+     * @param message received message
+     * @param sourceSenderId id of the participant the message was received from
+     */
+    void onFirstReception(Message message, int sourceSenderId);
+
+
+    /**
+     * Creates the strategy selected by the system properties
+     * @param linkHost host whose messages are relayed
+     * @param runtime runtime of the host, whose RetransmitWheel drives the delayed relays
+     * @return dissemination strategy of the host
+     */
+    static DisseminationStrategy create(LinkHost linkHost, HostRuntime runtime) {
+        String mode = System.getProperty("cs451.dissemination", "eager");
+        long relayTimeout = Integer.getInteger("cs451.relayTimeout", DEFAULT_RELAY_TIMEOUT);
+        switch (mode) {
+            case "lazy":
+                return new GossipDissemination(linkHost, runtime, 0, relayTimeout);
+            case "gossip":
+                return new GossipDissemination(linkHost, runtime, Integer.getInteger("cs451.fanout", DEFAULT_FANOUT), relayTimeout);
+            default:
+                return new EagerDissemination(linkHost);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package cs451.implementation;
+
+/**
+ * Relays every message to all the other participants on its first reception. Each participant learns from the relays
+ * themselves that the others have the message, at the cost of O(N^2) data messages per broadcast.
+ */
+public class EagerDissemination implements DisseminationStrategy {
+    private final LinkHost linkHost;
+
+
+    /**
+     * @param linkHost host whose messages are relayed
+     */
+    public EagerDissemination(LinkHost linkHost) {
+        this.linkHost = linkHost;
+    }
+
+
+    @Override
+    public void onFirstReception(Message message, int sourceSenderId) {
+        this.linkHost.broadcastRelayMessage(message);
+    }
+}
@@ -0,0 +1,119 @@
+package cs451.implementation;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Eventually perfect failure detector. Every datagram received from a process counts as its heartbeat (links which
+ * have nothing to send keep their destination informed with a heartbeat ack, see PerfectLink), and a process which
+ * wasn't heard of for its timeout is suspected. Hearing from a suspected process restores it and doubles its timeout,
+ * so every false suspicion makes the next one less likely, and the correct processes are eventually not suspected.
+ * The suspicions are only used to save work (e.g. retransmissions to crashed processes), the correctness of the
+ * broadcast never depends on them.
+ * The detector is checked at every tick of the RetransmitWheel, which also notifies the listeners.
+ */
+public class FailureDetector {
+    private static final long INITIAL_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(500); //Magic const
+    private static final long MAX_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Notified (by the thread of the RetransmitWheel) when a process becomes suspected or is restored
+     */
+    public interface Listener {
+        void onSuspect(int processId);
+
+        void onRestore(int processId);
+    }
+
+    private final int myId;
+    private final AtomicLongArray lastHeard;
+    private final AtomicIntegerArray suspected;
+    //Only accessed by the thread of the RetransmitWheel
+    private final long[] timeouts;
+    private final long[] suspectedSince;
+    private final CopyOnWriteArrayList<Listener> listeners;
+
+
+    /**
+     * @param hostsNumber number of hosts
+     * @param myId id of this host, which is never suspected
+     */
+    public FailureDetector(int hostsNumber, int myId) {
+        this.myId = myId;
+        this.lastHeard = new AtomicLongArray(hostsNumber);
+        this.suspected = new AtomicIntegerArray(hostsNumber);
+        this.timeouts = new long[hostsNumber];
+        this.suspectedSince = new long[hostsNumber];
+        this.listeners = new CopyOnWriteArrayList<>();
+        long now = System.nanoTime();
+        for (int i = 0; i < hostsNumber; i++) {
+            this.lastHeard.set(i, now);
+            this.timeouts[i] = INITIAL_TIMEOUT;
+        }
+    }
+
+
+    /**
+     * Registers the listener notified of the suspicions
+     * @param listener listener to add
+     */
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+
+    /**
+     * Records a heartbeat of the process, i.e. a datagram received from it
+     * @param processId id of the process
+     */
+    public void heard(int processId) {
+        this.lastHeard.lazySet(processId - 1, System.nanoTime());
+    }
+
+
+    /**
+     * @param processId id of the process
+     * @return true if the process is currently suspected to have crashed
+     */
+    public boolean isSuspected(int processId) {
+        return this.suspected.get(processId - 1) != 0;
+    }
+
+
+    /**
+     * Run at every tick of the RetransmitWheel: suspects the processes silent for longer than their timeout, and
+     * restores the suspected processes which were heard of since they were suspected
+     */
+    void check() {
+        long now = System.nanoTime();
+        for (int i = 0; i < this.timeouts.length; i++) {
+            if (i == this.myId - 1) {
+                continue;
+            }
+            long last = this.lastHeard.get(i);
+            if (this.suspected.get(i) == 0) {
+                if (now - last > this.timeouts[i]) {
+                    this.suspected.set(i, 1);
+                    this.suspectedSince[i] = now;
+                    if (Trace.INFO) {
+                        Trace.record(Trace.SUSPECTED, i + 1, 0, 0, 0);
+                    }
+                    for (Listener listener : this.listeners) {
+                        listener.onSuspect(i + 1);
+                    }
+                }
+            } else if (last - this.suspectedSince[i] > 0) {
+                this.suspected.set(i, 0);
+                this.timeouts[i] = Math.min(this.timeouts[i] << 1, MAX_TIMEOUT);
+                if (Trace.INFO) {
+                    Trace.record(Trace.RESTORED, i + 1, 0, 0, 0);
+                }
+                for (Listener listener : this.listeners) {
+                    listener.onRestore(i + 1);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package cs451.implementation;
+
+import java.util.function.Consumer;
+
+/**
+ * FIFO delivery engine: URB delivered messages of each original sender wait in a reorder ring, indexed by their
+ * sequence number, until all the messages of the sender before them are delivered. The arrival of the next expected
+ * message delivers it together with the contiguous run of messages waiting behind it, so every message is stored and
+ * delivered in O(1), and nothing is allocated per message.
+ */
+public class FifoDeliveryQueue {
+    private static final int INITIAL_CAPACITY = 64; //Needs to be a power of two
+
+    private final int[] delivered;
+    private final Message[][] pending;
+    private final Consumer<Message> deliver;
+
+
+    /**
+     * @param hostsNumber number of hosts (i.e. possible original senders of the messages)
+     * @param deliver called for every message in FIFO order, by the thread which added the message completing the run
+     */
+    public FifoDeliveryQueue(int hostsNumber, Consumer<Message> deliver) {
+        this.delivered = new int[hostsNumber];
+        this.pending = new Message[hostsNumber][INITIAL_CAPACITY];
+        this.deliver = deliver;
+    }
+
+
+    /**
+     * Adds the URB delivered message, and delivers the run of messages of its sender which it completes
+     * @param message URB delivered message
+     */
+    public synchronized void add(Message message) {
+        int sender = message.getOriginalSenderId() - 1;
+        int seq = message.getValue();
+        int next = this.delivered[sender] + 1;
+        if (seq < next) {
+            return;
+        }
+        if (seq != next) {
+            Message[] ring = this.pending[sender];
+            if (seq - this.delivered[sender] > ring.length) {
+                ring = this.grow(sender, seq);
+            }
+            ring[seq & (ring.length - 1)] = message;
+            return;
+        }
+        //Next expected message: deliver it without storing it, followed by the run waiting in the ring
+        Message[] ring = this.pending[sender];
+        Message head = message;
+        while (head != null) {
+            this.delivered[sender]++;
+            this.deliver.accept(head);
+            int index = (this.delivered[sender] + 1) & (ring.length - 1);
+            head = ring[index];
+            ring[index] = null;
+        }
+    }
+
+
+    /**
+     * Doubles the ring of the pending messages of the sender until it can hold the given sequence number
+     * @throws IllegalArgumentException if the sequence number is more than Message.MAX_SEQUENCE_GAP ahead
+     */
+    private Message[] grow(int sender, int seq) {
+        Message[] oldRing = this.pending[sender];
+        int base = this.delivered[sender];
+        if (seq - base > Message.MAX_SEQUENCE_GAP) {
+            throw new IllegalArgumentException("Sequence number " + seq + " is more than " + Message.MAX_SEQUENCE_GAP + " ahead of " + base);
+        }
+        int newLength = oldRing.length;
+        while (newLength < seq - base) {
+            newLength <<= 1;
+        }
+        Message[] ring = new Message[newLength];
+        for (int i = base + 1; i <= base + oldRing.length; i++) {
+            ring[i & (newLength - 1)] = oldRing[i & (oldRing.length - 1)];
+        }
+        this.pending[sender] = ring;
+        return ring;
+    }
+
+
+    /**
+     * @param originalSenderId id of the original sender
+     * @return number of messages of the sender delivered so far
+     */
+    public synchronized int getDelivered(int originalSenderId) {
+        return this.delivered[originalSenderId - 1];
+    }
+}
@@ -0,0 +1,297 @@
+package cs451.implementation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Fragmentation of the payloads larger than a single message (Message.MAX_PAYLOAD_SIZE), so that broadcasts of up to
+ * MAX_BROADCAST_SIZE bytes (cs451.maxBroadcast system property) go over UDP without being truncated:
+ * <ul>
+ *     <li> The broadcaster splits the payload into fragments of at most MAX_PAYLOAD_SIZE bytes, and broadcasts every
+ *     fragment as a message of its own. Every fragment carries the number of payload bytes which follow it (the
+ *     trailing size), 0 for the last fragment. Fragments are thus acknowledged and retransmitted one by one by the
+ *     links, like any other message.
+ *     <li> The fragments of a sender are delivered in the order of their sequence numbers (FIFO and causal delivery),
+ *     and the fragments of a payload are broadcast one after the other, so the assembler of the receiver only needs
+ *     one payload in progress per sender. Once the last fragment is delivered, the payload is passed up in place of it.
+ * </ul>
+ * Unfragmented payloads are passed up as they are (see Message). Reassembled payloads are copied into buffers of a
+ * pool (one pool per power of two size), which get back to the pool once the delivery callback returns, so they are
+ * only valid during the callback.
+ * The memory of the payloads in progress is bounded by MAX_ASSEMBLY_MEMORY (cs451.maxAssemblyMemory system property,
+ * in bytes): a payload whose buffer would exceed it is assembled in a temporary file instead, which is mapped for the
+ * delivery and deleted afterwards. Every fragment is kept until its payload is complete, whatever the failure
+ * detector suspects: a sender which crashes in the middle of a payload leaves it in progress (in memory or on disk)
+ * forever, which costs at most MAX_BROADCAST_SIZE bytes per crashed sender.
+ * The sizes come from the wire: a fragment which would make its payload exceed MAX_BROADCAST_SIZE, or which doesn't
+ * fit the payload in progress of its sender, is dropped together with the rest of its payload (up to the fragment whose
+ * trailing size is 0), and counted in fragments.dropped. Payloads spilled to disk are counted in fragments.spilled.
+ * The assembler is used by the delivery thread only, and is therefore not thread safe.
+ */
+public class FragmentAssembler {
+    public static final int MAX_BROADCAST_SIZE = Integer.getInteger("cs451.maxBroadcast", 16 << 20);
+    private static final long DEFAULT_MAX_ASSEMBLY_MEMORY = 64 << 20; //Magic const
+    public static final long MAX_ASSEMBLY_MEMORY = Long.getLong("cs451.maxAssemblyMemory", DEFAULT_MAX_ASSEMBLY_MEMORY);
+    private static final int POOL_CAPACITY = 4; //Magic const
+
+    /**
+     * Broadcasts a single fragment of a payload
+     */
+    public interface FragmentSender {
+        /**
+         * @param fragment bytes of the fragment (at most Message.MAX_PAYLOAD_SIZE)
+         * @param trailingSize number of payload bytes which follow the fragment
+         * @return sequence number of the message carrying the fragment
+         */
+        int send(ByteBuffer fragment, int trailingSize) throws InterruptedException;
+    }
+
+    /**
+     * Payload in progress of a sender, in a buffer of a pool or spilled to a temporary file
+     */
+    private static final class Assembly {
+        private final ByteBuffer buffer;
+        private final FileChannel file;
+        private int remaining;
+
+
+        private Assembly(ByteBuffer buffer, FileChannel file, int size) {
+            this.buffer = buffer;
+            this.file = file;
+            this.remaining = size;
+        }
+    }
+
+    private final Assembly[] assemblies;
+    //Senders whose fragments are dropped up to the end of the current payload
+    private final boolean[] dropping;
+    private final BufferPool[] pools;
+    private final Consumer<Message> deliver;
+    //Bytes of the buffers of the payloads in progress
+    private long assemblyMemory;
+    private LongAdder droppedFragments;
+    private LongAdder spilledPayloads;
+
+
+    /**
+     * @param hostsNumber number of hosts
+     * @param deliver called for every complete payload, with the last fragment carrying the whole payload
+     */
+    public FragmentAssembler(int hostsNumber, Consumer<Message> deliver) {
+        this.assemblies = new Assembly[hostsNumber];
+        this.dropping = new boolean[hostsNumber];
+        this.pools = new BufferPool[32];
+        this.deliver = deliver;
+        this.droppedFragments = new LongAdder();
+        this.spilledPayloads = new LongAdder();
+    }
+
+
+    /**
+     * @param metrics metrics of the host, which count the dropped fragments and the spilled payloads
+     */
+    public void setMetrics(Metrics metrics) {
+        this.droppedFragments = metrics.counter("fragments.dropped");
+        this.spilledPayloads = metrics.counter("fragments.spilled");
+        metrics.gauge("fragments.memory", () -> this.assemblyMemory);
+    }
+
+
+    /**
+     * Splits the payload into fragments and broadcasts them in order. Once the first fragment is sent, the others are
+     * sent regardless of interrupts (the receivers would not be able to tell the next payload apart otherwise), and
+     * the interrupt status is restored afterwards.
+     * @param payload payload bytes, from the position to the limit of the buffer, which are not copied
+     * @param sender broadcasts every fragment, the calls of a payload must not be interleaved with other broadcasts
+     * @return sequence number of the last fragment
+     */
+    public static int broadcast(ByteBuffer payload, FragmentSender sender) throws InterruptedException {
+        if (payload.remaining() > MAX_BROADCAST_SIZE) {
+            throw new IllegalArgumentException("Payload of " + payload.remaining() + " bytes exceeds " + MAX_BROADCAST_SIZE + " bytes");
+        }
+        ByteBuffer remaining = payload.slice();
+        boolean interrupted = false;
+        boolean first = true;
+        int seq;
+        while (true) {
+            ByteBuffer fragment = remaining.slice();
+            fragment.limit(Math.min(remaining.remaining(), Message.MAX_PAYLOAD_SIZE));
+            int trailingSize = remaining.remaining() - fragment.remaining();
+            try {
+                seq = sender.send(fragment, trailingSize);
+            } catch (InterruptedException e) {
+                if (first) {
+                    throw e;
+                }
+                interrupted = true;
+                continue;
+            }
+            first = false;
+            remaining.position(remaining.position() + fragment.remaining());
+            if (trailingSize == 0) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return seq;
+    }
+
+
+    /**
+     * Adds the delivered fragment to the payload in progress of its sender, and delivers the payload if it is complete
+     * @param message delivered message (fragment or unfragmented payload)
+     */
+    public void add(Message message) {
+        int sender = message.getOriginalSenderId() - 1;
+        int trailingSize = message.getTrailingSize();
+        if (this.dropping[sender]) {
+            this.drop(sender, trailingSize);
+            return;
+        }
+        Assembly assembly = this.assemblies[sender];
+        if (assembly == null) {
+            if (trailingSize == 0) {
+                this.deliver.accept(message);
+                return;
+            }
+            if (trailingSize > MAX_BROADCAST_SIZE - message.getPayloadSize()) {
+                this.drop(sender, trailingSize);
+                return;
+            }
+            assembly = this.begin(message.getPayloadSize() + trailingSize);
+            if (assembly == null) {
+                this.drop(sender, trailingSize);
+                return;
+            }
+            this.assemblies[sender] = assembly;
+        } else if (message.getPayloadSize() + (long) trailingSize != assembly.remaining) {
+            this.release(sender);
+            this.drop(sender, trailingSize);
+            return;
+        }
+        try {
+            this.append(assembly, message.getPayload());
+            if (trailingSize > 0) {
+                return;
+            }
+            this.deliver.accept(new Message(message, this.complete(assembly)));
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.drop(sender, trailingSize);
+        } finally {
+            if (trailingSize == 0 || this.dropping[sender]) {
+                this.release(sender);
+            }
+        }
+    }
+
+
+    /**
+     * Starts a payload in progress, in a buffer of a pool if the memory of the payloads in progress allows it, in a
+     * temporary file otherwise
+     * @param size size of the payload
+     * @return payload in progress, or null if the temporary file can't be created
+     */
+    private Assembly begin(int size) {
+        if (this.assemblyMemory + (1L << this.sizeClass(size)) <= MAX_ASSEMBLY_MEMORY) {
+            ByteBuffer buffer = this.acquire(size);
+            this.assemblyMemory += buffer.capacity();
+            return new Assembly(buffer, null, size);
+        }
+        try {
+            FileChannel file = FileChannel.open(Files.createTempFile("cs451-assembly-", ".bin"),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            this.spilledPayloads.increment();
+            return new Assembly(null, file, size);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+
+    /**
+     * Appends the fragment to the payload in progress
+     */
+    private void append(Assembly assembly, ByteBuffer fragment) throws IOException {
+        assembly.remaining -= fragment.remaining();
+        if (assembly.buffer != null) {
+            assembly.buffer.put(fragment);
+            return;
+        }
+        while (fragment.hasRemaining()) {
+            assembly.file.write(fragment);
+        }
+    }
+
+
+    /**
+     * @return read-only view of the complete payload, valid until the assembly is released
+     */
+    private ByteBuffer complete(Assembly assembly) throws IOException {
+        if (assembly.buffer != null) {
+            return assembly.buffer.flip().asReadOnlyBuffer();
+        }
+        return assembly.file.map(FileChannel.MapMode.READ_ONLY, 0, assembly.file.size());
+    }
+
+
+    /**
+     * Drops the fragment, and the next fragments of the sender up to the end of the payload
+     * @param sender index of the original sender of the fragment
+     * @param trailingSize trailing size of the fragment
+     */
+    private void drop(int sender, int trailingSize) {
+        this.dropping[sender] = trailingSize > 0;
+        this.droppedFragments.increment();
+    }
+
+
+    /**
+     * Returns the buffer of the payload in progress of the sender to its pool, or deletes its temporary file
+     * @param sender index of the sender
+     */
+    private void release(int sender) {
+        Assembly assembly = this.assemblies[sender];
+        this.assemblies[sender] = null;
+        if (assembly == null) {
+            return;
+        }
+        if (assembly.buffer != null) {
+            this.assemblyMemory -= assembly.buffer.capacity();
+            this.pools[this.sizeClass(assembly.buffer.capacity())].release(assembly.buffer);
+            return;
+        }
+        try {
+            assembly.file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * @return buffer of the pool of the smallest power of two holding size bytes, limited to size bytes
+     */
+    private ByteBuffer acquire(int size) {
+        int sizeClass = this.sizeClass(size);
+        if (this.pools[sizeClass] == null) {
+            this.pools[sizeClass] = new BufferPool(1 << sizeClass, POOL_CAPACITY, false);
+        }
+        ByteBuffer buffer = this.pools[sizeClass].acquire();
+        buffer.limit(size);
+        return buffer;
+    }
+
+
+    private int sizeClass(int size) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+    }
+}
@@ -0,0 +1,171 @@
+package cs451.implementation;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Relays each message of another original sender to a bounded number of random participants (the fanout) on its
+ * first reception, and leaves the rest of the dissemination to the original sender, which sends its messages to
+ * everyone. The participants learn who has the messages from the acks, which advertise everything the host has.
+ * Once the relay timeout passed since the first reception, the message is relayed to every participant which is still
+ * not known to have it (e.g. because the original sender crashed before sending it to everyone). The relays are
+ * reliable (PerfectLink), so the message is kept only until this check. With fanout 0 messages are relayed only after
+ * the timeout.
+ * The suspicions of the FailureDetector speed the dissemination up: the fanout is chosen among the participants which
+ * are not suspected, and the waiting messages of a suspected original sender are relayed without waiting for the timeout.
+ */
+public class GossipDissemination implements DisseminationStrategy, FailureDetector.Listener {
+    private static final int INITIAL_CAPACITY = 1024; //Needs to be a power of two
+
+    private final LinkHost linkHost;
+    private final int fanout;
+    private final long relayTimeout;
+    private final int myId;
+    private final int[] peers;
+    private final int[] candidates;
+    private final Random random;
+    private final FailureDetector failureDetector;
+    //Relay copies of the received messages waiting for the relay timeout, in the order of their first reception
+    private Message[] waiting;
+    private long[] receptionTimes;
+    private int head;
+    private int tail;
+
+
+    /**
+     * @param linkHost host whose messages are relayed
+     * @param runtime runtime of the host, whose RetransmitWheel checks the waiting messages at every tick
+     * @param fanout number of participants the message is relayed to on its first reception
+     * @param relayTimeout time (in milliseconds) after which the message is relayed to the participants not known to have it
+     */
+    public GossipDissemination(LinkHost linkHost, HostRuntime runtime, int fanout, long relayTimeout) {
+        this.linkHost = linkHost;
+        this.fanout = fanout;
+        this.relayTimeout = relayTimeout * 1_000_000L;
+        this.myId = linkHost.me.getId();
+        int hostsNumber = linkHost.perfectLinks.size();
+        this.peers = new int[hostsNumber - 1];
+        for (int id = 1, i = 0; id <= hostsNumber; id++) {
+            if (id != this.myId) {
+                this.peers[i++] = id;
+            }
+        }
+        this.candidates = new int[this.peers.length];
+        this.random = new Random(this.myId);
+        this.waiting = new Message[INITIAL_CAPACITY];
+        this.receptionTimes = new long[INITIAL_CAPACITY];
+        this.failureDetector = linkHost.failureDetector;
+        this.failureDetector.addListener(this);
+        runtime.getRetransmitWheel().addTickTask(this::relayExpired);
+    }
+
+
+    @Override
+    public void onFirstReception(Message message, int sourceSenderId) {
+        Message relayMessage = new Message(message);
+        relayMessage.changeSourceSender(this.myId);
+        //Partial Fisher-Yates shuffle: fanout random participants other than the source and the original sender
+        int originalSenderId = message.getOriginalSenderId();
+        System.arraycopy(this.peers, 0, this.candidates, 0, this.peers.length);
+        int remaining = this.candidates.length;
+        for (int relayed = 0; relayed < this.fanout && remaining > 0; ) {
+            int index = this.random.nextInt(remaining);
+            int id = this.candidates[index];
+            this.candidates[index] = this.candidates[--remaining];
+            if (id != sourceSenderId && id != originalSenderId && !this.failureDetector.isSuspected(id)) {
+                this.linkHost.sendRelayMessage(relayMessage, id);
+                relayed++;
+            }
+        }
+        this.enqueue(relayMessage, System.nanoTime());
+    }
+
+
+    private synchronized void enqueue(Message relayMessage, long receptionTime) {
+        if (this.tail - this.head == this.waiting.length) {
+            this.grow();
+        }
+        int index = this.tail++ & (this.waiting.length - 1);
+        this.waiting[index] = relayMessage;
+        this.receptionTimes[index] = receptionTime;
+    }
+
+
+    /**
+     * Doubles the capacity of the queue of the waiting messages
+     */
+    private void grow() {
+        int oldLength = this.waiting.length;
+        Message[] newWaiting = new Message[oldLength << 1];
+        long[] newTimes = new long[oldLength << 1];
+        for (int i = this.head; i != this.tail; i++) {
+            newWaiting[i & (newWaiting.length - 1)] = this.waiting[i & (oldLength - 1)];
+            newTimes[i & (newTimes.length - 1)] = this.receptionTimes[i & (oldLength - 1)];
+        }
+        this.waiting = newWaiting;
+        this.receptionTimes = newTimes;
+    }
+
+
+    /**
+     * Run at every tick of the RetransmitWheel: relays the messages whose relay timeout passed to every participant
+     * (other than the original sender) which is not known to have them
+     */
+    private void relayExpired() {
+        long now = System.nanoTime();
+        while (true) {
+            Message relayMessage;
+            synchronized (this) {
+                int index = this.head & (this.waiting.length - 1);
+                if (this.head == this.tail || now - this.receptionTimes[index] < this.relayTimeout) {
+                    return;
+                }
+                relayMessage = this.waiting[index];
+                this.waiting[index] = null;
+                this.head++;
+            }
+            this.relayToMissing(relayMessage);
+        }
+    }
+
+
+    /**
+     * Relays the message to every participant (other than the original sender) which is not known to have it
+     * @param relayMessage message whose source sender is this host
+     */
+    private void relayToMissing(Message relayMessage) {
+        int originalSenderId = relayMessage.getOriginalSenderId();
+        for (int id : this.peers) {
+            if (id != originalSenderId && !this.linkHost.hasMessage(originalSenderId, relayMessage.getValue(), id)) {
+                this.linkHost.sendRelayMessage(relayMessage, id);
+            }
+        }
+    }
+
+
+    /**
+     * Relays the waiting messages of the suspected process right away (they stay in the queue, the relays of the
+     * timeout check are filtered out as duplicates by the links)
+     * @param processId id of the suspected process
+     */
+    @Override
+    public void onSuspect(int processId) {
+        ArrayList<Message> relayMessages = new ArrayList<>();
+        synchronized (this) {
+            for (int i = this.head; i != this.tail; i++) {
+                Message relayMessage = this.waiting[i & (this.waiting.length - 1)];
+                if (relayMessage.getOriginalSenderId() == processId) {
+                    relayMessages.add(relayMessage);
+                }
+            }
+        }
+        for (Message relayMessage : relayMessages) {
+            this.relayToMissing(relayMessage);
+        }
+    }
+
+
+    @Override
+    public void onRestore(int processId) {
+    }
+}
@@ -0,0 +1,129 @@
+package cs451.implementation;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Runtime shared by all the links of the host: the RetransmitWheel, the pool of the datagram buffers, and the threads
+ * of the processing stages. The number of threads doesn't depend on the number of hosts, every stage is run by the
+ * thread(s) which own it. Incoming traffic goes through a pipeline of stages connected by bounded queues (see
+ * PipelineStage), in the order:
+ * <ul>
+ *     <li> receive-reader-i - drains the socket into the receive ring (see DatagramReceiver)
+ *     <li> receive-dispatcher - decodes the received datagrams (in place, see MessageView) and processes their
+ *     messages: link acks, URB ack counting and relays
+ *     <li> urb-delivery - URB delivered messages, FIFO/LCB delivery, reassembly of the fragments and the delivery
+ *     callbacks of the application (see UrbHost)
+ *     <li> delivery-log-writer - writes the output file (owned by the DeliveryLogWriter of the Host)
+ * </ul>
+ * Besides the pipeline:
+ * <ul>
+ *     <li> retransmit-wheel - retransmissions, delayed acks and flushing of the batches of all the links
+ *     <li> main - broadcasts the messages of the host
+ * </ul>
+ * Data owned by a stage is only written by its thread(s), the other stages communicate with it through queues or
+ * thread safe structures (e.g. the send windows of the links, which are written both by the broadcaster and the
+ * dispatcher, are synchronized). The queues of the pipeline stages are registered here, and their depths are gauges
+ * of the Metrics of the host.
+ * The project runs on Java 11, so stages are platform threads (not virtual threads).
+ */
+public class HostRuntime {
+    private final RetransmitWheel retransmitWheel;
+    private final BufferPool bufferPool;
+    private final int datagramSize;
+    private final CopyOnWriteArrayList<Thread> stages;
+    private final CopyOnWriteArrayList<PipelineStage<?>> pipelineStages;
+    private final Metrics metrics;
+
+
+    /**
+     * Creates the runtime and starts the RetransmitWheel
+     * @param hostsNumber number of hosts (bounds the size of the largest message)
+     */
+    public HostRuntime(int hostsNumber) {
+        this.stages = new CopyOnWriteArrayList<>();
+        this.pipelineStages = new CopyOnWriteArrayList<>();
+        this.metrics = new Metrics();
+        //Batches are sent under the MTU, only a single message larger than the MTU is sent in a larger datagram
+        this.datagramSize = Math.max(MessageBatcher.MTU, 1 + Message.getMessageSize(hostsNumber));
+        //One buffer per link for sending, sent from the channel without copying
+        this.bufferPool = new BufferPool(this.datagramSize, hostsNumber, true);
+        this.retransmitWheel = new RetransmitWheel();
+        this.retransmitWheel.start(this);
+    }
+
+
+    /**
+     * Starts the thread running the stage
+     * @param name name of the stage (and of its thread)
+     * @param loop processing loop of the stage
+     * @return started thread
+     */
+    public Thread startStage(String name, Runnable loop) {
+        Thread thread = new Thread(loop, name);
+        this.stages.add(thread);
+        thread.start();
+        return thread;
+    }
+
+
+    /**
+     * Registers the stage of the pipeline, whose queue is then reported by getPipelineStages
+     * @param stage stage to register
+     */
+    public void registerStage(PipelineStage<?> stage) {
+        this.pipelineStages.add(stage);
+        StageQueue<?> queue = stage.getQueue();
+        this.metrics.gauge("stage." + stage.getName() + ".depth", queue::getDepth);
+        this.metrics.gauge("stage." + stage.getName() + ".maxDepth", queue::getMaxDepth);
+        this.metrics.gauge("stage." + stage.getName() + ".fullOffers", queue::getFullOffers);
+    }
+
+
+    /**
+     * @return stages of the pipeline, in the order of their start
+     */
+    public List<PipelineStage<?>> getPipelineStages() {
+        return this.pipelineStages;
+    }
+
+
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+
+    public RetransmitWheel getRetransmitWheel() {
+        return this.retransmitWheel;
+    }
+
+
+    public BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+
+    /**
+     * @return size of the largest datagram sent or received (in bytes)
+     */
+    public int getDatagramSize() {
+        return this.datagramSize;
+    }
+
+
+    /**
+     * @return number of stage threads started by the runtime
+     */
+    public int getStageCount() {
+        return this.stages.size();
+    }
+
+
+    /**
+     * Stops the RetransmitWheel and the dumps of the metrics (the receiver is stopped by its LinkHost)
+     */
+    public void shutdown() {
+        this.retransmitWheel.shutdown();
+        this.metrics.shutdown();
+    }
+}
@@ -0,0 +1,108 @@
+package cs451.implementation;
+
+import java.util.Arrays;
+
+/**
+ * Log-linear histogram of non negative values (e.g. latencies in microseconds), in the style of HdrHistogram: values
+ * below SUB_BUCKETS are counted exactly, above that every power of two is split into SUB_BUCKETS equal buckets, so the
+ * relative error of the reported percentiles is below 1/SUB_BUCKETS whatever the magnitude of the values, and
+ * recording a value is O(1) without any allocation.
+ * The histogram is not thread safe, it is recorded by a single thread (or under a lock) and merged afterwards.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts;
+    private long count;
+    private long max;
+
+
+    public LatencyHistogram() {
+        this.counts = new long[BUCKETS];
+    }
+
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+
+    /**
+     * @return highest value counted in the bucket
+     */
+    private static long highestOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long mantissa = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+
+    /**
+     * @param value value to record (negative values are recorded as 0)
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        this.counts[bucketOf(value)]++;
+        this.count++;
+        this.max = Math.max(this.max, value);
+    }
+
+
+    /**
+     * Adds the values recorded by the other histogram to this one
+     * @param other histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts[i] += other.counts[i];
+        }
+        this.count += other.count;
+        this.max = Math.max(this.max, other.max);
+    }
+
+
+    /**
+     * @param percentile percentile to compute, between 0 and 100
+     * @return value such that the given percentage of the recorded values is less or equal to it (0 if empty)
+     */
+    public long getPercentile(double percentile) {
+        long rank = (long) Math.ceil(percentile / 100 * this.count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts[i];
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(highestOf(i), this.max);
+            }
+        }
+        return this.max;
+    }
+
+
+    public long getCount() {
+        return this.count;
+    }
+
+
+    public long getMax() {
+        return this.max;
+    }
+
+
+    /**
+     * Forgets all the recorded values
+     */
+    public void reset() {
+        Arrays.fill(this.counts, 0);
+        this.count = 0;
+        this.max = 0;
+    }
+}
@@ -2,12 +2,10 @@ package cs451.implementation;
 
 import cs451.Host;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * Class wrapping each process(host) with the PerfectLink semantics
@@ -18,7 +16,29 @@ public class LinkHost {
 
     //Maps hostID to corresponding perfect link whose destination is hostID
     HashMap<Integer, PerfectLink>  perfectLinks;
-    ConcurrentHashMap<Message,Integer> urbAckCount;
+    //Participants which have each message, and the callback run once a message is had by the majority
+    UrbAckTable urbAckCount;
+    DeliveryWatermarks deliveryWatermarks;
+    int deliveryThreshold;
+    Consumer<Message> urbDelivery;
+    //For each original sender: messages received from any of the links, shared by the links (see PerfectLink)
+    ReceiveWindow[] receivedMessages;
+    //For each original sender: received messages waiting to be had by the majority
+    MessageRing[] pendingMessages;
+    //For each original sender and acker: cumulative sequence number of the last ack whose messages were counted
+    int[][] countedAcks;
+    DisseminationStrategy dissemination;
+    FailureDetector failureDetector;
+    HostRuntime runtime;
+    Transport transport;
+    MessageView view;
+    //Metrics: datagrams received from each host, URB delivered messages, datagrams discarded (partly) as malformed,
+    //time from the first reception (or the broadcast) of a message to its URB delivery
+    LongAdder[] receivedDatagrams;
+    LongAdder urbDelivered;
+    LongAdder malformedDatagrams;
+    LongAdder outOfWindowMessages;
+    Metrics.Histogram urbLatency;
 
 
     /**
@@ -26,13 +46,49 @@ public class LinkHost {
      *
      * @param me Host object denoting the source
      * @param perfectLinks Map of the PerfectLinks of the form destinationID->PerfectLink(me, destination)
-     * @param messagesToSendNum Number of messages to be sent (used when initializing map containing ack count, which is used for URB delivery)
+     * @param messagesToSendNum Number of messages to be sent
+     * @param runtime runtime shared by the links, which owns the threads of the receiver
      */
 
-    public LinkHost(Host me, HashMap<Integer, PerfectLink> perfectLinks, int messagesToSendNum){
+    public LinkHost(Host me, HashMap<Integer, PerfectLink> perfectLinks, int messagesToSendNum, HostRuntime runtime){
         this.me=me;
         this.perfectLinks=perfectLinks;
-        this.urbAckCount=new ConcurrentHashMap<>(this.perfectLinks.size()*messagesToSendNum);
+        this.runtime=runtime;
+        this.urbAckCount=new UrbAckTable(this.perfectLinks.size());
+        this.deliveryWatermarks=new DeliveryWatermarks(this.perfectLinks.size(), me.getId());
+        for(PerfectLink link: this.perfectLinks.values()){
+            if(link.destination.getId()!=me.getId()){
+                link.setDeliveryWatermarks(this.deliveryWatermarks);
+            }
+        }
+        //NOTE: +1 is needed for both cases (when size is even or size is odd)
+        this.deliveryThreshold=this.perfectLinks.size()/2+1;
+        this.receivedMessages=new ReceiveWindow[this.perfectLinks.size()];
+        this.pendingMessages=new MessageRing[this.perfectLinks.size()];
+        for(int i=0; i<this.receivedMessages.length; i++){
+            this.receivedMessages[i]=new ReceiveWindow();
+            this.pendingMessages[i]=new MessageRing();
+        }
+        this.countedAcks=new int[this.perfectLinks.size()][this.perfectLinks.size()];
+        this.failureDetector=new FailureDetector(this.perfectLinks.size(), me.getId());
+        runtime.getRetransmitWheel().addTickTask(this.failureDetector::check);
+        this.deliveryWatermarks.setFailureDetector(this.failureDetector);
+        for(PerfectLink link: this.perfectLinks.values()){
+            if(link.destination.getId()!=me.getId()){
+                link.setReceiveWindows(this.receivedMessages);
+                link.setFailureDetector(this.failureDetector);
+            }
+        }
+        this.dissemination=DisseminationStrategy.create(this, runtime);
+        Metrics metrics=runtime.getMetrics();
+        this.receivedDatagrams=new LongAdder[this.perfectLinks.size()];
+        for(int i=0; i<this.receivedDatagrams.length; i++){
+            this.receivedDatagrams[i]=metrics.counter("link."+(i+1)+".datagramsReceived");
+        }
+        this.urbDelivered=metrics.counter("urb.delivered");
+        this.malformedDatagrams=metrics.counter("link.malformedDatagrams");
+        this.outOfWindowMessages=metrics.counter("link.outOfWindow");
+        this.urbLatency=metrics.histogram("urb.ackToDelivery.us");
     }
 
     /**
@@ -49,125 +105,285 @@ public class LinkHost {
     }
 
     /**
-     * Lunches anonymous thread which listens on the  designated port number and accepts incoming messages in the name
-     * of the Host me. The incoming messages are handled depending on their type:
+     * Starts the transport of the Host me (see DatagramReceiver for UDP), which accepts the incoming datagrams in the
+     * name of the Host me. The messages of the datagrams are handled depending on their type:
      * <ul>
-     *     <li> Data messages are acknowledged via the matching ack message.
-     *     <li> Ack messages signifies that the corresponding data message should not be sent anymore.
+     *     <li> Data messages are acknowledged via the ack message of their stream (see PerfectLink).
+     *     <li> Ack messages signifies that the acknowledged data messages should not be sent anymore.
      * </ul>
      *
-     * Additionally, this part also counts the number of acknowledgments by other host for each message issues in network.
-     * This is later on used in the URB portion of the code
+     * Additionally, this part also counts the participants which have each message issued in the network (the ones
+     * which sent it, or acknowledged it). This is later on used in the URB portion of the code. The first time a
+     * message is received (from any host), it is relayed as decided by the DisseminationStrategy.
      */
 
-    //BIG TODO: There is issue here, for both messages?, we need to a different way of getting the perfect link (if a source is 1, and I got ack from 2, here it still pulls out the perfect link with destination 1)
     public void beginReception(){
-        new Thread(() -> {
-            //System.out.println("Beginning reception: ");
-            while(true){
-                try {
-                    int messageSize=Message.getMessageSize(this.perfectLinks.size());
-                    byte[] data=new byte[messageSize];
-                    DatagramPacket receivedPacket=new DatagramPacket(data,Message.getMessageSize(this.perfectLinks.size()));
-                    me.getSocket().receive(receivedPacket);
-                    Message receivedMessage=Message.deserializeMessage(receivedPacket.getData(),this.perfectLinks.size());
-                    //System.out.println("Received something new, message : "+receivedMessage);
-
-                    //Get who is the last sender of the message
-
-                    switch (receivedMessage.getDataType()){
-                        case Message.DATA_MESSAGE:
-                            //System.out.println("Receiving data message:" + receivedMessage+"from "+receivedMessage.getSourceSenderId());
-                            PerfectLink perfectLink=this.getPerfectLinkFromID(receivedMessage.getSourceSenderId());
-                            var value =perfectLink.deliveredMessages.putIfAbsent(receivedMessage,true);
-                            if(value==null) {//if this is null, this means that we have indeed added something new, so we deliver new message
-                                //System.out.println("About to PerfectLink deliver a new message: "+receivedMessage);
-                                Message keyMessage=new Message(receivedMessage);
-                                keyMessage.changeSourceSender(Message.NO_SOURCE);
-                                //receivedMessage.changeSourceSender(Message.NO_SOURCE);
-                                //Pair<Integer,Integer> receivedMessageInfo=receivedMessage.getMessageInfo();
-                                Integer oldValue=this.urbAckCount.getOrDefault(keyMessage,0); //There shouldn't be concurrency issues, because only one thread operates
-                                //System.out.println("About to deliver a new message: "+receivedMessage);
-                                //System.out.println("for message: "+receivedMessage+" Ack count for this message was: "+oldValue);
-
-                                //Update ackCount for this message
-                                this.urbAckCount.put(keyMessage,oldValue+1);
-                                perfectLink.deliverMessage(receivedMessage);
-                                this.broadcastRelayMessage(receivedMessage);
-                            }
-                            perfectLink.sendAckMessage(receivedMessage.getValue(),receivedMessage.getOriginalSenderId(),receivedMessage.getVectorClock());
-                            break;
-                        case Message.ACK_MESSAGE: //Note: this is acknowledgment for perfect links, which tells me to stop sending the given message
-
-                            //TODO: This is a new perfect link, which we find based on from whom did we receive the message!!!
-                            PerfectLink perfectLink1 = getPerfectLinkFromPort(receivedPacket.getPort());
-                            //System.out.println("Receiving ack message: "+receivedMessage+" And considering perfect link: "+perfectLink1.destination.getId());
-                            //System.out.println("Printing out the unacked messages keys, set size is: "+perfectLink1.unackedMessages.keySet().size());
-                            //perfectLink1.unackedMessages.keySet().forEach(key->System.out.println(key));
-                            receivedMessage.changeToDataMessage();
-                            ScheduledFuture<?> isDone=perfectLink1.unackedMessages.get(receivedMessage);
-
-                            //TODO: Maybe I don't even need this, an ack is sent only if I am already sending, if it is not there, I should just ignore it because I already removed it
-                            if(isDone!=null){
-                                //System.out.println("Going to cancel the corresponding data message, where the ack was: "+receivedMessage);
-                                isDone.cancel(true);
-                                perfectLink1.unackedMessages.remove(receivedMessage);
-                                //System.err.println("Potential error in stopping the sending for message: "+queryMessageInfo);
-                            }
-                            break;
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+        this.view=new MessageView(this.perfectLinks.size());
+        try {
+            this.transport=this.me.getTransport();
+            this.transport.start(this.runtime, this::handleDatagram);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Handles the messages of a received datagram, called by the dispatcher thread of the transport
+     * @param datagram buffer holding the datagram, from its position to its limit
+     * @return true if a kept message holds a slice of the datagram (its payload), so the buffer must not be reused
+     */
+    private boolean handleDatagram(ByteBuffer datagram){
+        //Datagram starts with the wire version, followed by a batch of messages placed one after the other
+        int offset=datagram.position();
+        int length=datagram.limit();
+        if(offset==length || datagram.get(offset)!=Message.WIRE_VERSION){
+            return false;
+        }
+        offset++;
+        //All the messages of a datagram come from the same process, the datagram is its heartbeat. Malformed (corrupt
+        //or foreign) messages are not trusted: the rest of the datagram is discarded from the first one on
+        if(offset<length && this.view.wrap(datagram,offset).isValid()){
+            int sourceSenderId=this.view.getSourceSenderId();
+            this.failureDetector.heard(sourceSenderId);
+            this.receivedDatagrams[sourceSenderId-1].increment();
+        }
+        boolean retained=false;
+        while(offset<length && this.view.wrap(datagram,offset).isValid()){
+            offset+=this.view.getSize();
+            retained|=this.handleMessage(this.view);
+        }
+        if(offset<length){
+            this.malformedDatagrams.increment();
+        }
+        return retained;
+    }
+
+
+    /**
+     * Handles a single message received over the network, depending on its type. The Message object is materialized
+     * only for data messages received for the first time (from any of the links).
+     * @param view view of the message to handle
+     * @return true if the message was kept with a payload which is a slice of the viewed buffer (large payloads only)
+     */
+    private boolean handleMessage(MessageView view){
+        boolean retained=false;
+        if(!this.isWithinWindow(view)){
+            this.outOfWindowMessages.increment();
+            return false;
+        }
+        switch (view.getDataType()){
+            case Message.DATA_MESSAGE:
+                PerfectLink perfectLink=this.getPerfectLinkFromID(view.getSourceSenderId());
+                int originalSenderId=view.getOriginalSenderId();
+                int seq=view.getValue();
+                if(perfectLink.deliverMessage(view)) {//First reception, the receive windows are shared by the links
+                    Message receivedMessage=view.toMessage();
+                    retained=MessageView.sharesBuffer(receivedMessage);
+                    this.keepPending(receivedMessage);
+                    this.dissemination.onFirstReception(receivedMessage, view.getSourceSenderId());
+                    //Note: This is self-delivery, I am one more participant which has the message
+                    this.countUrbAck(originalSenderId, seq, this.me.getId());
                 }
+                //Its sender has the message
+                this.countUrbAck(originalSenderId, seq, view.getSourceSenderId());
+                break;
+            case Message.ACK_MESSAGE: //Note: this is acknowledgment for perfect links, which tells me to stop sending the acknowledged messages
+                this.getPerfectLinkFromID(view.getSourceSenderId()).acknowledge(view);
+                this.countAckedMessages(view);
+                if(this.deliveryWatermarks.update(view.getOriginalSenderId(), view.getSourceSenderId(), view.getDelivered())){
+                    this.collectStable(view.getOriginalSenderId());
+                }
+                break;
+        }
+        return retained;
+    }
+
+
+    /**
+     * Counts the acker of the ack message as a participant which has the acknowledged messages (acks advertise every
+     * message the acker has, see PerfectLink). The messages up to the cumulative sequence number are counted once per
+     * acker, the selectively acknowledged ones are filtered by the UrbAckTable.
+     * @param ack view of the received ack message
+     */
+    private void countAckedMessages(MessageView ack){
+        int originalSenderId=ack.getOriginalSenderId();
+        int ackerId=ack.getSourceSenderId();
+        int cumulative=ack.getValue();
+        int[] counted=this.countedAcks[originalSenderId-1];
+        for(int seq=counted[ackerId-1]+1; seq<=cumulative; seq++){
+            this.countUrbAck(originalSenderId, seq, ackerId);
+        }
+        counted[ackerId-1]=Math.max(counted[ackerId-1], cumulative);
+        for(int w=0; w<Message.SACK_WORDS; w++){
+            long word=ack.getSelectiveAck(w);
+            while(word!=0){
+                this.countUrbAck(originalSenderId, cumulative+1+(w<<6)+Long.numberOfTrailingZeros(word), ackerId);
+                word&=word-1;
             }
-        }).start();
+        }
     }
 
 
     /**
-     * Sends the received message to other participants using perfect link semantics
+     * Sends the received message to other participants using perfect link semantics. Message is sent to every other
+     * participant (including the one we received it from), so that every participant learns that we have the message,
+     * and every stream of the links carries all the messages of its original sender.
      * @param oldRelayMessage Message which is to be relayed to other participants
      */
     public void broadcastRelayMessage(Message oldRelayMessage){
-        //Note: Extract the useful information about the message we are relaying
-        //System.out.println("Old (relay) message was: "+oldRelayMessage);
-
         //Note: Here  message data is changed so that I am the one who is sending the relay message
         Message newRelayMessage=new Message(oldRelayMessage);
         newRelayMessage.changeSourceSender(this.me.getId());
 
-        //relayMessage.changeSourceSender(this.me.getId());
-        //System.out.println("New (relay) message is: "+newRelayMessage);
-
         for(PerfectLink link:this.perfectLinks.values()){
+            if (link.destination.getId() != this.me.getId()){
+                if(Trace.DEBUG){
+                    Trace.record(Trace.RELAYED, newRelayMessage.getOriginalSenderId(), newRelayMessage.getValue(), link.destination.getId(), 0);
+                }
+                link.sendDataMessage(newRelayMessage);
+            }
+        }
+    }
 
-            //Note: If the corresponding old message was delivered, or if I have already sent the relay, I don't do another sending of the same message
-            if(!link.deliveredMessages.containsKey(oldRelayMessage) && !link.unackedMessages.containsKey(newRelayMessage) ) {
 
-                //Note: I am not sending the message to myself, and also I am not sending the message to the original issuer of the message
-                if (link.destination.getId() != newRelayMessage.getSourceSenderId()){
-                    System.out.println("Relaying message: " + newRelayMessage + "to " + link.destination.getId());
-                    link.sendDataMessage(newRelayMessage);
-                }
-                else{
-                    //Note: This is self-delivery, I immediately deliver the relayed message to myself (if necessary)
-                    //TODO:(refactor as a separate function to avoid confusion)
-                    Boolean value =link.deliveredMessages.putIfAbsent(newRelayMessage,true);
-                    if(value==null) {//if this is null, this means that we have indeed added something new, so we deliver new message
-                        //Pair<Integer,Integer> receivedMessageInfo=newRelayMessage.getMessageInfo();
-                        Message keyMessage=new Message(newRelayMessage);
-                        keyMessage.changeSourceSender(Message.NO_SOURCE);
-                        Integer oldValue=this.urbAckCount.getOrDefault(keyMessage,0); //There shouldn't be concurrency issues, because only one thread operates
-                        //System.out.println("About to PerfectLink deliver a new message: "+receivedMessage);
-                        //System.out.println("for message: "+relayMessage+" Ack count for this message was: "+oldValue);
-                        this.urbAckCount.put(keyMessage,oldValue+1);
-                        link.deliverMessage(newRelayMessage);
-                    }
-                }
+    /**
+     * Sends the relay message to a single participant using perfect link semantics
+     * @param relayMessage message whose source sender is this host
+     * @param destinationId id of the participant
+     */
+    public void sendRelayMessage(Message relayMessage, int destinationId){
+        if(Trace.DEBUG){
+            Trace.record(Trace.RELAYED, relayMessage.getOriginalSenderId(), relayMessage.getValue(), destinationId, 0);
+        }
+        this.getPerfectLinkFromID(destinationId).sendDataMessage(relayMessage);
+    }
+
+
+    /**
+     * @param originalSenderId id of the process which originally sent the message
+     * @param seq sequence number of the message
+     * @param participantId id of the participant
+     * @return true if the participant is known to have the message
+     */
+    public boolean hasMessage(int originalSenderId, int seq, int participantId){
+        if(this.urbAckCount.get(originalSenderId, seq)<0){
+            //Released once stable, possibly without the participant (suspected), which only has it if it delivered it
+            return this.deliveryWatermarks.getWatermark(originalSenderId, participantId)>=seq;
+        }
+        return this.urbAckCount.hasAcked(originalSenderId, seq, participantId);
+    }
+
+
+    /**
+     * Called when this host broadcasts its own message: message is counted as received (so it is never relayed) and
+     * acknowledged by this host
+     * @param message message broadcast by this host
+     */
+    public void deliverOwnMessage(Message message){
+        this.receivedMessages[message.getOriginalSenderId()-1].mark(message.getValue());
+        this.keepPending(message);
+        this.countUrbAck(message.getOriginalSenderId(), message.getValue(), this.me.getId());
+    }
+
+
+    /**
+     * Keeps the received message until it is had by the majority of the participants
+     * @param message message received for the first time
+     */
+    private void keepPending(Message message){
+        message.setTimestamp(System.nanoTime());
+        MessageRing pending=this.pendingMessages[message.getOriginalSenderId()-1];
+        synchronized (pending){
+            pending.put(message);
+        }
+    }
+
+
+    /**
+     * Sets the callback which URB delivers the messages
+     * @param urbDelivery called exactly once per message, by the thread which found the majority having the message
+     * once this host has it as well
+     */
+    public void setUrbDelivery(Consumer<Message> urbDelivery){
+        this.urbDelivery=urbDelivery;
+    }
+
+
+    /**
+     * Records that the participant has the message (acks of the same participant are counted once), and URB delivers
+     * the message if the majority of the participants has it. The majority can be reached before this host receives
+     * the message (from the acks of the others), the message is then delivered by the ack of this host on reception.
+     * @param originalSenderId id of the process which originally sent the message
+     * @param seq sequence number of the message
+     * @param ackerId id of the participant which has the message
+     */
+    private void countUrbAck(int originalSenderId, int seq, int ackerId){
+        if(this.urbAckCount.ack(originalSenderId, seq, ackerId)>=this.deliveryThreshold){
+            //Removing the pending message makes sure it is delivered once
+            Message message;
+            MessageRing pending=this.pendingMessages[originalSenderId-1];
+            synchronized (pending){
+                message=pending.remove(seq);
+            }
+            if(message!=null){
+                this.urbDeliver(message);
             }
         }
     }
 
+
+    /**
+     * URB delivers the message (as a copy with no source sender)
+     * @param message message had by the majority of the participants
+     */
+    private void urbDeliver(Message message){
+        this.urbDelivered.increment();
+        this.urbLatency.recordSince(message.getTimestamp());
+        if(Trace.DEBUG){
+            Trace.record(Trace.URB_DELIVERED, message.getOriginalSenderId(), message.getValue(), 0, 0);
+        }
+        int originalSenderId=message.getOriginalSenderId();
+        if(this.deliveryWatermarks.markDelivered(originalSenderId, message.getValue())){
+            MessageRing pending=this.pendingMessages[originalSenderId-1];
+            synchronized (pending){
+                pending.release(this.deliveryWatermarks.getDelivered(originalSenderId));
+            }
+            this.collectStable(originalSenderId);
+        }
+        if(this.urbDelivery!=null){
+            Message deliveredMessage=new Message(message);
+            deliveredMessage.changeSourceSender(Message.NO_SOURCE);
+            this.urbDelivery.accept(deliveredMessage);
+        }
+    }
+
+    /**
+     * Sequence numbers come from the wire: a message which runs more than Message.MAX_SEQUENCE_GAP ahead of what this
+     * host received from its original sender is not trusted, so that the windows indexed by sequence number stay
+     * bounded. Correct processes never run that far ahead, an ignored message is retransmitted (or acknowledged again)
+     * once this host caught up.
+     * @param view view of the received message
+     * @return true if the sequence number of the message (and the delivered watermark of an ack) is within the window
+     */
+    private boolean isWithinWindow(MessageView view){
+        int received=this.receivedMessages[view.getOriginalSenderId()-1].getCumulative();
+        if(view.getValue()-received>Message.MAX_SEQUENCE_GAP){
+            return false;
+        }
+        return view.getDataType()!=Message.ACK_MESSAGE || view.getDelivered()-received<=Message.MAX_SEQUENCE_GAP;
+    }
+
+
+    /**
+     * Drops the per-message state of the messages of the original sender which were delivered by every unsuspected
+     * process
+     * @param originalSenderId id of the process which originally sent the messages
+     */
+    private void collectStable(int originalSenderId){
+        this.urbAckCount.release(originalSenderId, this.deliveryWatermarks.getStable(originalSenderId));
+    }
+
     /*private void printDeliveredMessages(PerfectLink link){
         System.out.println("Already acked messages with destination being: "+link.destination.getId());
         link.deliveredMessages.keySet().forEach(key->System.out.println(key));
@@ -184,23 +400,13 @@ public class LinkHost {
         return perfectLinks.get(destinationID);
     }
 
-    /**
-     * Obtains PerfectLink object such that the destination Host of the PerfectLink has given poer
-     * @param port port number of the destinationHost to obtain
-     * @return corresponding PerfectLink object
-     */
-    public PerfectLink getPerfectLinkFromPort(int port) throws UnknownHostException {
-        for (PerfectLink link : perfectLinks.values()) {
-            if (link.destination.getPort() == port) {
-                return link;
-            }
-        }
-        //System.err.println("Warning, if you reached here, you queried a non existing address, likely a sign of error in this function implementation");
-        //System.err.println("Address was: "+port);
-        return Optional.<PerfectLink>empty().get();
-    }
-
     public void shutdownLinkHost(){
+        if(this.transport!=null){
+            this.transport.shutdown();
+        }
+        if(this.runtime!=null){
+            this.runtime.shutdown();
+        }
         for(PerfectLink perfectLink: perfectLinks.values()){
             perfectLink.shutdownLink();
         }
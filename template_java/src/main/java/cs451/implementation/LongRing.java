@@ -0,0 +1,181 @@
+package cs451.implementation;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free ring of records of longs, with any number of producers and a single consumer, shared by the
+ * queues of the host (StageQueue, DeliveryLogWriter, Trace). The ring is made of slots with sequence numbers (every
+ * slot knows the position for which it is free or full), so producers claim slots with a single CAS and the consumer
+ * never locks:
+ * <ul>
+ *     <li> Producing - claim a position, put the fields of the record, then publish the position (or offer a record
+ *     of a single long at once).
+ *     <li> Consuming - peek the position at the head, get the fields of the record, then release the position.
+ * </ul>
+ * Every record has the same number of fields (the width of the ring), a ring of width 0 only sequences the slots and
+ * its users keep the records in an array of their own, indexed by the slot of the position (see StageQueue). The ring
+ * keeps the metrics of its depth: the largest depth seen by a producer, and the number of claims which found the ring
+ * full.
+ */
+public class LongRing {
+    private final int capacity;
+    private final int width;
+    private final long[] values;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail;
+    private final AtomicLong head;
+    private final AtomicInteger maxDepth;
+    private final AtomicLong fullOffers;
+
+
+    /**
+     * @param capacity number of slots of the ring (needs to be a power of two)
+     * @param width number of long fields of every record
+     */
+    public LongRing(int capacity, int width) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity " + capacity + " is not a power of two");
+        }
+        this.capacity = capacity;
+        this.width = width;
+        this.values = new long[capacity * width];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            this.sequences.set(i, i);
+        }
+        this.tail = new AtomicLong();
+        this.head = new AtomicLong();
+        this.maxDepth = new AtomicInteger();
+        this.fullOffers = new AtomicLong();
+    }
+
+
+    /**
+     * Claims the slot at the tail of the ring, if the ring is not full. The record must then be put and published.
+     * @return claimed position, or -1 if the ring is full
+     */
+    public long claim() {
+        while (true) {
+            long position = this.tail.get();
+            long difference = this.sequences.get(this.slot(position)) - position;
+            if (difference == 0) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    int depth = (int) (position + 1 - this.head.get());
+                    if (depth > this.maxDepth.get()) {
+                        this.maxDepth.accumulateAndGet(depth, Math::max);
+                    }
+                    return position;
+                }
+            } else if (difference < 0) {
+                this.fullOffers.incrementAndGet();
+                return -1;
+            }
+        }
+    }
+
+
+    /**
+     * Sets a field of the record at the claimed position, before it is published
+     * @param position claimed position
+     * @param field index of the field (below the width of the ring)
+     * @param value value of the field
+     */
+    public void put(long position, int field, long value) {
+        this.values[this.slot(position) * this.width + field] = value;
+    }
+
+
+    /**
+     * Hands the record at the claimed position over to the consumer
+     * @param position claimed position
+     */
+    public void publish(long position) {
+        this.sequences.lazySet(this.slot(position), position + 1);
+    }
+
+
+    /**
+     * Adds a record of a single field at the tail of the ring, if the ring is not full
+     * @param value value of the first field
+     * @return false if the ring is full
+     */
+    public boolean offer(long value) {
+        long position = this.claim();
+        if (position < 0) {
+            return false;
+        }
+        this.put(position, 0, value);
+        this.publish(position);
+        return true;
+    }
+
+
+    /**
+     * Finds the record at the head of the ring, must only be called by the consumer
+     * @return position of the record, or -1 if the ring is empty
+     */
+    public long peek() {
+        long position = this.head.get();
+        return this.sequences.get(this.slot(position)) == position + 1 ? position : -1;
+    }
+
+
+    /**
+     * @param position position returned by peek
+     * @param field index of the field (below the width of the ring)
+     * @return value of the field of the record
+     */
+    public long get(long position, int field) {
+        return this.values[this.slot(position) * this.width + field];
+    }
+
+
+    /**
+     * Frees the slot of the record at the head of the ring once the consumer read it
+     * @param position position returned by peek
+     */
+    public void release(long position) {
+        this.sequences.lazySet(this.slot(position), position + this.capacity);
+        this.head.lazySet(position + 1);
+    }
+
+
+    /**
+     * @param position position in the ring
+     * @return index of the slot holding the record of the position
+     */
+    public int slot(long position) {
+        return (int) position & (this.capacity - 1);
+    }
+
+
+    /**
+     * @return number of records in the ring (approximate while the ring is used)
+     */
+    public int getDepth() {
+        return (int) Math.max(0, this.tail.get() - this.head.get());
+    }
+
+
+    /**
+     * @return largest number of records which were in the ring at once
+     */
+    public int getMaxDepth() {
+        return this.maxDepth.get();
+    }
+
+
+    /**
+     * @return number of claims which found the ring full
+     */
+    public long getFullOffers() {
+        return this.fullOffers.get();
+    }
+
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+}
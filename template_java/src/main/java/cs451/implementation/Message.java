@@ -1,6 +1,6 @@
 package cs451.implementation;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Objects;
 
 /** Message class specifies the message format used in the broadcasts, and the corresponding objects are used
  * in the broadcasts/links logics
@@ -8,16 +8,57 @@ import java.util.Objects;
  * to destination, the corresponding packet will contain one of the specified encodings to tell the destination which type
  * it received:
  *<ul>
- *     <li> DATA_MESSAGE=1, denotes actual message which is broadcast delivered
- *     <li> ACK_MESSAGE=2, serves to tell the broadcaster that the receiver acknowledges the reception of the broadcast message
- *     <li> MESSAGE_SIZE=7  (placeholder used to initialize byte array version of message during the Message -> byte[] serialization
+ *     <li> DATA_MESSAGE=1, denotes actual message which is broadcast delivered, it carries the (possibly empty)
+ *     application payload
+ *     <li> ACK_MESSAGE=2, serves to tell the sender that the receiver acknowledges the reception of the messages of one
+ *     stream (i.e. messages of a single original sender sent over a single link). The value of the ack message is the
+ *     cumulative sequence number (every message up to it was received), and the message carries a bitmap of
+ *     SACK_WORDS longs, which selectively acknowledges the messages received above the cumulative sequence number.
+ *     Ack messages also piggyback the delivered watermark of the acknowledging process for the original sender of
+ *     the stream (every message of that sender up to it was URB delivered by the process), see DeliveryWatermarks,
+ *     and echo the sequence number of the last message of the stream received over the link from the acknowledged
+ *     process (0 if none), which tells the acknowledged process which of its own transmissions the ack answers.
+ *     <li> HEADER_SIZE=3  (fixed part of the header, i.e. everything except the varint encoded value)
  *</ul>
+ * Wire format (WIRE_VERSION=6), every datagram starts with the version byte and carries a batch of messages. Integers
+ * are encoded as unsigned varints (7 bits per byte, the high bit tells that another byte follows):
+ *<ul>
+ *     <li> header: dataType (1 byte), originalSenderId (1 byte), sourceSenderId (1 byte), value (varint)
+ *     <li> data message: header, number of non-zero vector clock entries (varint), followed by (index, entry) varint
+ *     pairs for each non-zero entry. Clocks are sparse (only the own entry and the dependencies are ever incremented),
+ *     so the size of the message follows the number of dependencies instead of the number of hosts. The clock is
+ *     followed by the trailing size (varint, see FragmentAssembler), the payload length (varint) and the payload bytes
+ *     (at most MAX_PAYLOAD_SIZE).
+ *     <li> ack message: header, delivered watermark (varint), echoed sequence number (varint), number of selective ack words (1 byte, trailing zero words are omitted), followed by
+ *     the words (8 bytes each). Ack messages carry no vector clock.
+ *</ul>
+ * Messages are encoded directly into (and decoded from) caller supplied ByteBuffers, see also MessageView which reads
+ * the fields of an encoded message without materializing the Message object.
+ * The payload is never copied by the layers: a message materialized from a received datagram (see
+ * MessageView.toMessage) holds its payload as a read-only slice of the receive buffer. Only a small payload (at most
+ * PAYLOAD_COPY_THRESHOLD bytes, cs451.payloadCopyThreshold system property) is copied once to the heap, so that a few
+ * bytes don't keep the receive buffer of the whole datagram alive. The copies of a message
+ * (relays, deliveries) share its payload and its vector clock, which are never modified once the message is created.
  */
 
 public class Message {
     public static final byte DATA_MESSAGE = 1;
     public static final byte ACK_MESSAGE = 2;
-    public static final int MESSAGE_SIZE = 7;
+    public static final int HEADER_SIZE = 3;
+    public static final int SACK_WORDS = 4;
+    public static final byte WIRE_VERSION = 6;
+    private static final int MAX_VARINT_SIZE = 5;
+    public static final int MAX_PAYLOAD_SIZE = Integer.getInteger("cs451.maxPayload", 1024);
+    //Largest distance (in messages, at most 2^30) from what a host received of a stream to a sequence number it
+    //accepts from the wire: the windows indexed by sequence number never grow beyond it
+    private static final int DEFAULT_MAX_SEQUENCE_GAP = 1 << 20; //Magic const
+    public static final int MAX_SEQUENCE_GAP = Integer.getInteger("cs451.maxSequenceGap", DEFAULT_MAX_SEQUENCE_GAP);
+    //Copying a payload of a few words costs less than taking its datagram buffer out of the receive ring (see
+    //DatagramReceiver), larger payloads are delivered without being copied
+    private static final int DEFAULT_PAYLOAD_COPY_THRESHOLD = 64; //Magic const
+    public static final int PAYLOAD_COPY_THRESHOLD = Integer.getInteger("cs451.payloadCopyThreshold", DEFAULT_PAYLOAD_COPY_THRESHOLD);
+    public static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0).asReadOnlyBuffer();
+    public static final int ACK_MESSAGE_SIZE = HEADER_SIZE + 3 * MAX_VARINT_SIZE + 1 + 8 * SACK_WORDS; //Upper bound of the ack message size
     public static final int NO_SOURCE=0;
     private final int value;
     private  byte dataType;
@@ -26,6 +67,13 @@ public class Message {
 
     //TODO: newly added
     private int[] vectorClock;
+    private long[] selectiveAcks;
+    private int delivered;
+    private int echo;
+    private ByteBuffer payload = EMPTY_PAYLOAD;
+    private int trailingSize;
+    //Time (System.nanoTime) at which the message entered the layer holding it, for the latency metrics (not encoded)
+    private long timestamp;
 
 
     /**
@@ -50,17 +98,90 @@ public class Message {
         this.originalSenderId=originalSenderId;
         this.vectorClock=vectorClock;
     }
-    
-    
+
+
+    /**
+     * Constructs data message carrying the payload
+     * @param value  sequence number of the message
+     * @param dataType message type (see the @class description)
+     * @param sourceSenderId Id of process relaying the message
+     * @param originalSenderId Id of the process which sent the message
+     * @param vectorClock vector clock of the message
+     * @param payload payload bytes (from the position to the limit of the buffer), which are not copied and must not be
+     *                modified afterwards
+     */
+    public Message(int value, byte dataType, byte sourceSenderId, byte originalSenderId, int[] vectorClock, ByteBuffer payload) {
+        this(value, dataType, sourceSenderId, originalSenderId, vectorClock);
+        if (payload.remaining() > MAX_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Payload of " + payload.remaining() + " bytes exceeds " + MAX_PAYLOAD_SIZE + " bytes");
+        }
+        this.payload = payload.remaining() == 0 ? EMPTY_PAYLOAD : payload.slice().asReadOnlyBuffer();
+    }
+
+
+    /**
+     * Constructs data message carrying a fragment of a larger payload (see FragmentAssembler)
+     * @param value  sequence number of the message
+     * @param dataType message type (see the @class description)
+     * @param sourceSenderId Id of process relaying the message
+     * @param originalSenderId Id of the process which sent the message
+     * @param vectorClock vector clock of the message
+     * @param payload fragment bytes, which are not copied and must not be modified afterwards
+     * @param trailingSize number of payload bytes carried by the next fragments (0 for the last fragment)
+     */
+    public Message(int value, byte dataType, byte sourceSenderId, byte originalSenderId, int[] vectorClock, ByteBuffer payload, int trailingSize) {
+        this(value, dataType, sourceSenderId, originalSenderId, vectorClock, payload);
+        this.trailingSize = trailingSize;
+    }
+
+
+    /**
+     * Constructs the message delivered in place of the last fragment of a payload, once the payload is reassembled
+     * @param lastFragment last fragment of the payload
+     * @param payload reassembled payload (read-only, not limited by MAX_PAYLOAD_SIZE)
+     */
+    Message(Message lastFragment, ByteBuffer payload) {
+        this(lastFragment);
+        this.payload = payload;
+    }
+
+
+
+    /**
+     * Constructs ack message for a stream of messages
+     * @param cumulative every message of the stream up to this sequence number was received
+     * @param delivered every message of the original sender up to this sequence number was URB delivered
+     * @param echo sequence number of the last message of the stream received over the link (0 if none)
+     * @param sourceSenderId Id of process acknowledging the messages
+     * @param originalSenderId Id of the process which sent the messages of the stream
+     * @param selectiveAcks bitmap of the messages received above the cumulative sequence number
+     */
+    public Message(int cumulative, int delivered, int echo, byte sourceSenderId, byte originalSenderId, long[] selectiveAcks) {
+        this.value = cumulative;
+        this.delivered = delivered;
+        this.echo = echo;
+        this.dataType = ACK_MESSAGE;
+        this.sourceSenderId = sourceSenderId;
+        this.originalSenderId=originalSenderId;
+        this.selectiveAcks=selectiveAcks;
+    }
+
+
+    /**
+     * Constructs a copy of the message, which shares the vector clock and the payload of the message
+     * @param otherMessage message to copy
+     */
     public Message(Message otherMessage){
         this.value=otherMessage.getValue();
         this.dataType=otherMessage.dataType;
         this.sourceSenderId=otherMessage.sourceSenderId;
         this.originalSenderId=otherMessage.originalSenderId;
-        this.vectorClock=new int[otherMessage.vectorClock.length];
-        for (int i=0; i<otherMessage.vectorClock.length; i++) {
-            this.vectorClock[i]=otherMessage.vectorClock[i];
-        }
+        this.vectorClock=otherMessage.vectorClock;
+        this.selectiveAcks=otherMessage.selectiveAcks;
+        this.delivered=otherMessage.delivered;
+        this.echo=otherMessage.echo;
+        this.payload=otherMessage.payload;
+        this.trailingSize=otherMessage.trailingSize;
     }
 
 
@@ -74,36 +195,184 @@ public class Message {
      * @return byte array corresponding to the byte encoding of the message. Message is encoded in the order of the parameters.
      */
     public static byte[] serializeMessage(int data, byte dataType, byte originalSenderId, byte sourceSenderId, int[] clock) {
-        //System.out.printf("Message object to serialize: %d, %d\n",data,dataType);
+        byte [] result=new byte[getDataSize(data, clock)];
+        encodeDataMessage(ByteBuffer.wrap(result), data, dataType, originalSenderId, sourceSenderId, clock);
+        return  result;
+    }
+
+
+    /**
+     * Writes the data message at the current position of the buffer (and advances the position)
+     * @param buffer buffer with at least getDataSize(data, clock) bytes remaining
+     * @param data sequence number of the message
+     * @param dataType message type (see the @class description)
+     * @param originalSenderId id of the process which originally sent (broadcast) the message
+     * @param sourceSenderId id of the process which last sent (relayed) the message
+     * @param clock vector clock which needs to be serialized (only the non-zero entries are written)
+     */
+    public static void encodeDataMessage(ByteBuffer buffer, int data, byte dataType, byte originalSenderId, byte sourceSenderId, int[] clock) {
+        encodeDataMessage(buffer, data, dataType, originalSenderId, sourceSenderId, clock, EMPTY_PAYLOAD, 0);
+    }
 
-        byte [] result=new byte[4* clock.length+MESSAGE_SIZE];
-        for(int i=0; i< clock.length; i++){
-            for (int offset=0; offset<4; offset++){
-                int index=4*i+offset;
-                result[index]=(byte) ((clock[i] >> (24-offset*8)) & 0xff);
-                //System.out.println("Serialized byte "+result[index]);
+
+    /**
+     * Writes the data message carrying the payload at the current position of the buffer (and advances the position)
+     * @param buffer buffer with at least getDataSize(data, clock, payload.remaining()) bytes remaining
+     * @param data sequence number of the message
+     * @param dataType message type (see the @class description)
+     * @param originalSenderId id of the process which originally sent (broadcast) the message
+     * @param sourceSenderId id of the process which last sent (relayed) the message
+     * @param clock vector clock which needs to be serialized (only the non-zero entries are written)
+     * @param payload payload bytes, from the position to the limit of the buffer (its position is not changed)
+     * @param trailingSize number of payload bytes carried by the next fragments of the payload
+     */
+    public static void encodeDataMessage(ByteBuffer buffer, int data, byte dataType, byte originalSenderId, byte sourceSenderId, int[] clock, ByteBuffer payload, int trailingSize) {
+        buffer.put(dataType).put(originalSenderId).put(sourceSenderId);
+        putVarint(buffer, data);
+        int nonZero=0;
+        for (int entry : clock) {
+            if (entry != 0) {
+                nonZero++;
+            }
+        }
+        putVarint(buffer, nonZero);
+        for (int i = 0; i < clock.length; i++) {
+            if (clock[i] != 0) {
+                putVarint(buffer, i);
+                putVarint(buffer, clock[i]);
             }
         }
-        result[4* clock.length]=dataType;
-        result[4* clock.length+1]=originalSenderId;
-        result[4* clock.length+2]=sourceSenderId;
-        result[4* clock.length+3]=(byte) ((data >> 24) & 0xff);
-        result[4* clock.length+4]=(byte) ((data >> 16) & 0xff);
-        result[4* clock.length+5]=(byte) ((data >> 8) & 0xff);
-        result[4* clock.length+6]=(byte) (data & 0xff);
+        putVarint(buffer, trailingSize);
+        putVarint(buffer, payload.remaining());
+        buffer.put(payload.duplicate());
+    }
 
-        return  result;
 
-        /*return new byte[]{
-                dataType,
-                originalSenderId, //no original sender in this case
-                sourceSenderId,
-                (byte) ((data >> 24) & 0xff),
-                (byte) ((data >> 16) & 0xff),
-                (byte) ((data >> 8) & 0xff),
-                (byte) (data & 0xff),
-        }; */
-        //return ByteBuffer.allocate(MESSAGE_SIZE).put(dataType).putInt(data).fl;
+    /**
+     * Writes the ack message at the current position of the buffer (and advances the position)
+     * @param buffer buffer with at least getAckSize(cumulative, delivered, echo, selectiveAcks) bytes remaining
+     * @param cumulative cumulative sequence number of the acknowledged stream
+     * @param delivered delivered watermark of the acknowledging process for the original sender
+     * @param echo sequence number of the last message of the stream received over the link (0 if none)
+     * @param originalSenderId id of the process which originally sent (broadcast) the messages of the stream
+     * @param sourceSenderId id of the process which acknowledges the messages
+     * @param selectiveAcks bitmap of the messages received above the cumulative sequence number
+     */
+    public static void encodeAckMessage(ByteBuffer buffer, int cumulative, int delivered, int echo, byte originalSenderId, byte sourceSenderId, long[] selectiveAcks) {
+        buffer.put(ACK_MESSAGE).put(originalSenderId).put(sourceSenderId);
+        putVarint(buffer, cumulative);
+        putVarint(buffer, delivered);
+        putVarint(buffer, echo);
+        int words = usedWords(selectiveAcks);
+        buffer.put((byte) words);
+        for (int w = 0; w < words; w++) {
+            buffer.putLong(selectiveAcks[w]);
+        }
+    }
+
+
+    /**
+     * Writes this message at the current position of the buffer (and advances the position)
+     * @param buffer buffer with at least getSerializedSize() bytes remaining
+     */
+    public void encode(ByteBuffer buffer) {
+        if (this.dataType == ACK_MESSAGE) {
+            encodeAckMessage(buffer, this.value, this.delivered, this.echo, this.originalSenderId, this.sourceSenderId, this.selectiveAcks);
+        } else {
+            encodeDataMessage(buffer, this.value, this.dataType, this.originalSenderId, this.sourceSenderId, this.vectorClock, this.payload, this.trailingSize);
+        }
+    }
+
+
+    /**
+     * Writes the unsigned varint at the current position of the buffer
+     */
+    static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+
+    /**
+     * Reads the unsigned varint at the current position of the buffer (and advances the position)
+     */
+    static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+
+    /**
+     * @return number of bytes occupied by the varint encoding of the value
+     */
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+
+    /**
+     * @return number of selective ack words up to the last non-zero one
+     */
+    private static int usedWords(long[] selectiveAcks) {
+        int words = SACK_WORDS;
+        while (words > 0 && selectiveAcks[words - 1] == 0) {
+            words--;
+        }
+        return words;
+    }
+
+
+    /**
+     * @return number of bytes occupied by the encoded data message (with no payload)
+     */
+    public static int getDataSize(int data, int[] clock) {
+        return getDataSize(data, clock, 0);
+    }
+
+
+    /**
+     * @return number of bytes occupied by the encoded data message carrying payloadSize bytes of payload
+     */
+    public static int getDataSize(int data, int[] clock, int payloadSize) {
+        return getDataSize(data, clock, payloadSize, 0);
+    }
+
+
+    /**
+     * @return number of bytes occupied by the encoded fragment carrying payloadSize bytes, followed by trailingSize bytes
+     */
+    public static int getDataSize(int data, int[] clock, int payloadSize, int trailingSize) {
+        int size = HEADER_SIZE + varintSize(data) + varintSize(trailingSize) + varintSize(payloadSize) + payloadSize;
+        int nonZero = 0;
+        for (int i = 0; i < clock.length; i++) {
+            if (clock[i] != 0) {
+                nonZero++;
+                size += varintSize(i) + varintSize(clock[i]);
+            }
+        }
+        return size + varintSize(nonZero);
+    }
+
+
+    /**
+     * @return number of bytes occupied by the encoded ack message
+     */
+    public static int getAckSize(int cumulative, int delivered, int echo, long[] selectiveAcks) {
+        return HEADER_SIZE + varintSize(cumulative) + varintSize(delivered) + varintSize(echo) + 1 + 8 * usedWords(selectiveAcks);
     }
 
 
@@ -124,7 +393,9 @@ public class Message {
 
     public static byte[] serializeMessage(Message message){
         //System.out.println("In serialize: clock to serialize: "+Arrays.toString(message.getVectorClock()));
-        return serializeMessage(message.getValue(),message.getDataType(),message.getByteOriginalSenderId(),message.getByteSourceSenderId(), message.getVectorClock());
+        byte[] result=new byte[message.getSerializedSize()];
+        message.encode(ByteBuffer.wrap(result));
+        return result;
     }
 
 /*    *//**
@@ -149,34 +420,87 @@ public class Message {
     /**
      * Converts the byte array representation of the Message into the corresponding Message object
      * @param data byte representation of the message
+     * @param numberOfHosts number of hosts (length of the vector clock of data messages)
      * @return Message object based on the received data
      */
     public static Message deserializeMessage(byte[] data, int numberOfHosts) {
-        assert data.length <= MESSAGE_SIZE+4*numberOfHosts;
+        return deserializeMessage(data, 0, numberOfHosts);
+    }
+
+
+    /**
+     * Converts the byte representation of the Message starting at the given offset (used when the datagram carries a
+     * batch of messages) into the corresponding Message object
+     * @param data byte representation of the messages
+     * @param offset position of the first byte of the message
+     * @param numberOfHosts number of hosts (length of the vector clock of data messages)
+     * @return Message object based on the received data
+     */
+    public static Message deserializeMessage(byte[] data, int offset, int numberOfHosts) {
+        ByteBuffer buffer=ByteBuffer.wrap(data);
+        buffer.position(offset);
+        return decode(buffer, numberOfHosts);
+    }
+
+
+    /**
+     * Reads the message at the current position of the buffer (and advances the position)
+     * @param buffer buffer holding the encoded message
+     * @param numberOfHosts number of hosts (length of the vector clock of data messages)
+     * @return Message object based on the buffer content
+     * @throws IllegalArgumentException if the number of selective ack words, a clock index or the payload size is out of
+     * range (see MessageView.isValid, which checks received messages before they are decoded)
+     */
+    public static Message decode(ByteBuffer buffer, int numberOfHosts) {
+        byte dataType = buffer.get();
+        byte originalSenderId=buffer.get();
+        byte sourceSenderId=buffer.get();
+        int value = getVarint(buffer);
+        if(dataType==ACK_MESSAGE){
+            int delivered=getVarint(buffer);
+            int echo=getVarint(buffer);
+            long[] selectiveAcks=new long[SACK_WORDS];
+            int words=buffer.get();
+            if(words<0 || words>SACK_WORDS){
+                throw new IllegalArgumentException("Ack message with "+words+" selective ack words");
+            }
+            for(int w=0; w<words; w++){
+                selectiveAcks[w]=buffer.getLong();
+            }
+            return new Message(value, delivered, echo, sourceSenderId, originalSenderId, selectiveAcks);
+        }
+
         int[] vectorClock=new int[numberOfHosts];
-        for(int i=0; i<numberOfHosts; i++){
-            int value = ( // NOTE: type cast not necessary for int
-                    (0xff & data[4*i]) << 24 |
-                            (0xff & data[4*i+1]) << 16 |
-                            (0xff & data[4*i+2]) << 8 |
-                            (0xff & data[4*i+3])
-                    );
-
-            vectorClock[i]=value;
-            //System.out.println("Deserialized value: "+vectorClock[i]);
+        int nonZero=getVarint(buffer);
+        for(int i=0; i<nonZero; i++){
+            int index=getVarint(buffer);
+            if(index<0 || index>=numberOfHosts){
+                throw new IllegalArgumentException("Vector clock index "+index+" out of "+numberOfHosts+" hosts");
+            }
+            vectorClock[index]=getVarint(buffer);
+        }
+        Message message=new Message(value, dataType, sourceSenderId, originalSenderId, vectorClock);
+        message.trailingSize=getVarint(buffer);
+        //Payload is a read-only slice of the buffer, which is not copied
+        int payloadSize=getVarint(buffer);
+        if(payloadSize<0 || payloadSize>buffer.remaining()){
+            throw new IllegalArgumentException("Payload of "+payloadSize+" bytes, "+buffer.remaining()+" bytes remaining");
+        }
+        if(payloadSize>0){
+            ByteBuffer payload=buffer.slice();
+            payload.limit(payloadSize);
+            message.payload=payload.asReadOnlyBuffer();
+            buffer.position(buffer.position()+payloadSize);
         }
+        return message;
+    }
 
-        int offset=4*numberOfHosts;
-        byte dataType = data[offset];
-        byte originalSenderId=data[offset+1];
-        byte sourceSenderId=data[offset+2];
-        int value = ( // NOTE: type cast not necessary for int
-                (0xff & data[offset+3] << 24 |
-                        (0xff & data[offset+4]) << 16 |
-                        (0xff & data[offset+5]) << 8 |
-                        (0xff & data[offset+6])
-                ));
-        return new Message(value, dataType, sourceSenderId, originalSenderId, vectorClock);
+
+    /**
+     * @return number of bytes occupied by this message once serialized
+     */
+    public int getSerializedSize(){
+        return this.dataType==ACK_MESSAGE ? getAckSize(this.value, this.delivered, this.echo, this.selectiveAcks) : getDataSize(this.value, this.vectorClock, this.payload.remaining(), this.trailingSize);
     }
 
     /**
@@ -196,14 +520,14 @@ public class Message {
      * @return int valued id of the original sender
      */
     public int getOriginalSenderId(){
-        return this.originalSenderId;
+        return this.originalSenderId & 0xff;
     }
 
 
     /**
      * @return int valued id of the source sender
      */
-    public int getSourceSenderId() {return this.sourceSenderId;}
+    public int getSourceSenderId() {return this.sourceSenderId & 0xff;}
 
 
     /**
@@ -230,16 +554,87 @@ public class Message {
         this.sourceSenderId=(byte)senderId;
     }
 
-    public void changeToDataMessage(){
-        if(this.dataType==ACK_MESSAGE){
-            this.dataType=DATA_MESSAGE;
+    public int[] getVectorClock() {
+        return vectorClock;
+    }
+
+    /**
+     * @return read-only view of the payload of the message (positioned at its first byte), which shares the bytes of
+     * the payload (the buffer the message was decoded from, or the buffer given at its creation)
+     */
+    public ByteBuffer getPayload() {
+        return this.payload.duplicate();
+    }
+
+
+    /**
+     * Replaces the payload of the message with a heap copy of it, so that it no longer shares the buffer the message
+     * was decoded from. Only called before the message is shared with other threads.
+     */
+    void copyPayload() {
+        if (this.payload.remaining() > 0) {
+            ByteBuffer copy = ByteBuffer.allocate(this.payload.remaining());
+            copy.put(this.payload.duplicate()).flip();
+            this.payload = copy.asReadOnlyBuffer();
         }
-        System.out.println("Error, you shouldn't be here");
     }
 
 
-    public int[] getVectorClock() {
-        return vectorClock;
+    /**
+     * @return number of bytes of the payload of the message
+     */
+    public int getPayloadSize() {
+        return this.payload.remaining();
+    }
+
+
+    /**
+     * @return number of payload bytes carried by the next fragments of the payload, 0 if the message carries the last
+     * fragment or an unfragmented payload
+     */
+    public int getTrailingSize() {
+        return this.trailingSize;
+    }
+
+
+    /**
+     * @return time (System.nanoTime) at which the message entered the layer holding it (see setTimestamp)
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+
+    /**
+     * Records the time at which the message enters a layer, which measures its latency in the layer (see Metrics)
+     * @param timestamp System.nanoTime of the entry
+     */
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return bitmap of the selectively acknowledged messages (only for ack messages)
+     */
+    public long[] getSelectiveAcks() {
+        return selectiveAcks;
+    }
+
+
+    /**
+     * @return delivered watermark of the acknowledging process for the original sender (only for ack messages)
+     */
+    public int getDelivered() {
+        return delivered;
+    }
+
+
+    /**
+     * @return sequence number of the last message of the stream received over the link by the acknowledging process
+     * (only for ack messages, 0 if none)
+     */
+    public int getEcho() {
+        return echo;
     }
 
     /**
@@ -275,7 +670,12 @@ public class Message {
 
     @Override
     public int hashCode() {
-        return Objects.hash(value, dataType, originalSenderId, sourceSenderId);
+        //Computed on the primitive fields directly (Objects.hash would box them into a varargs array on every call)
+        int result = value;
+        result = 31 * result + dataType;
+        result = 31 * result + originalSenderId;
+        result = 31 * result + sourceSenderId;
+        return result;
     }
 
 
@@ -287,6 +687,7 @@ public class Message {
                 ", sourceSenderId=" + sourceSenderId +
                 ", originalSenderId=" + originalSenderId +
                 ", vectorClock=" + Arrays.toString(this.vectorClock) +
+                (this.selectiveAcks != null ? ", selectiveAcks=" + Arrays.toString(this.selectiveAcks) : "") +
                 '}';
     }
 
@@ -295,8 +696,12 @@ public class Message {
     }
 
 
+    /**
+     * @param hostNumber number of hosts (length of the vector clock)
+     * @return upper bound of the size of a message (data or ack) which can be received
+     */
     public static int getMessageSize(int hostNumber){
-        return 4*hostNumber+MESSAGE_SIZE;
+        return Math.max(HEADER_SIZE+4*MAX_VARINT_SIZE+2*MAX_VARINT_SIZE*hostNumber+MAX_PAYLOAD_SIZE, ACK_MESSAGE_SIZE);
     }
 }
 
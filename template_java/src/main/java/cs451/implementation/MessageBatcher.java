@@ -0,0 +1,123 @@
+package cs451.implementation;
+
+import cs451.Host;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Packs the messages (data and acks) sent to the same destination into a single UDP datagram.
+ * Messages are self delimiting (the size of each message follows from its encoding), so the datagram is the wire
+ * version byte (Message.WIRE_VERSION) followed by the concatenation of the messages, which are encoded directly into
+ * the (direct) frame buffer of the batcher and sent from it by the transport of the host, without any intermediate copy.
+ * The datagram is sent once the next message wouldn't fit under MTU bytes, or when
+ * the batcher is flushed (the PerfectLink flushes it at every tick of the RetransmitWheel, which bounds the time a
+ * message lingers in the batch).
+ * The MTU can be configured with the cs451.mtu system property. A single message larger than the MTU (a large payload
+ * with a dense vector clock, in a large cluster) is the only case in which a datagram exceeds the MTU: such a message
+ * is sent alone in its datagram (which is then fragmented by IP), it is never batched with other messages.
+ */
+public class MessageBatcher {
+    private static final int DEFAULT_MTU = 1472; //Largest UDP payload which fits in a 1500 byte Ethernet frame
+    public static final int MTU = Integer.getInteger("cs451.mtu", DEFAULT_MTU);
+
+    private final Host source;
+    private final ByteBuffer frame;
+    private final Host destination;
+    private volatile long lastSent;
+    private LongAdder sentDatagrams;
+
+
+    /**
+     * @param source Host whose transport is used to send the datagrams
+     * @param destination Host to which the datagrams are sent
+     * @param bufferPool pool from which the frame buffer is taken (buffers need to hold at least the version byte and
+     *                   the largest message, even above the MTU)
+     */
+    public MessageBatcher(Host source, Host destination, BufferPool bufferPool) throws UnknownHostException {
+        this.source = source;
+        this.frame = bufferPool.acquire();
+        this.destination = destination;
+        destination.getSocketAddress();
+        this.frame.put(Message.WIRE_VERSION);
+        this.lastSent = System.nanoTime();
+    }
+
+
+    /**
+     * Appends the message to the current datagram, sending the datagram first if the message doesn't fit in it
+     * @param message message to send
+     */
+    public synchronized void add(Message message) {
+        this.makeRoom(message.getSerializedSize());
+        message.encode(this.frame);
+    }
+
+
+    /**
+     * Appends the ack message to the current datagram, sending the datagram first if the ack doesn't fit in it
+     * @param cumulative cumulative sequence number of the acknowledged stream
+     * @param delivered delivered watermark of this host for the original sender of the stream
+     * @param echo sequence number of the last message of the stream received from the destination (0 if none)
+     * @param originalSenderId id of the process which originally sent the messages of the stream
+     * @param sourceSenderId id of the process which acknowledges the messages
+     * @param selectiveAcks bitmap of the messages received above the cumulative sequence number
+     */
+    public synchronized void addAck(int cumulative, int delivered, int echo, byte originalSenderId, byte sourceSenderId, long[] selectiveAcks) {
+        this.makeRoom(Message.getAckSize(cumulative, delivered, echo, selectiveAcks));
+        Message.encodeAckMessage(this.frame, cumulative, delivered, echo, originalSenderId, sourceSenderId, selectiveAcks);
+    }
+
+
+    /**
+     * Sends the current datagram if the message wouldn't fit in it under the MTU. A message larger than the MTU is
+     * therefore appended to an empty datagram, and the next message flushes it.
+     * @param size size of the message to append (in bytes)
+     */
+    private void makeRoom(int size) {
+        if (this.frame.position() > 1 && this.frame.position() + size > MTU) {
+            this.flush();
+        }
+    }
+
+
+    /**
+     * Sets the counter of the datagrams sent by the batcher
+     * @param sentDatagrams counter incremented for every sent datagram
+     */
+    public void setSentDatagrams(LongAdder sentDatagrams) {
+        this.sentDatagrams = sentDatagrams;
+    }
+
+
+    /**
+     * @return time (System.nanoTime) at which the last datagram was sent to the destination
+     */
+    public long getLastSent() {
+        return this.lastSent;
+    }
+
+
+    /**
+     * Sends the current datagram, if it contains any message
+     */
+    public synchronized void flush() {
+        if (this.frame.position() <= 1) {
+            return;
+        }
+        this.frame.flip();
+        try {
+            this.source.getTransport().send(this.frame, this.destination);
+            this.lastSent = System.nanoTime();
+            if (this.sentDatagrams != null) {
+                this.sentDatagrams.increment();
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to send a message due to the socket error");
+            e.printStackTrace();
+        }
+        this.frame.clear();
+        this.frame.put(Message.WIRE_VERSION);
+    }
+}
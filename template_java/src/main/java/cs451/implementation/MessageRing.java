@@ -0,0 +1,101 @@
+package cs451.implementation;
+
+import java.util.Arrays;
+
+/**
+ * Messages of a single original sender, indexed by sequence number. The messages up to the base watermark are gone
+ * (e.g. all of them were already delivered), the messages above it are kept in a ring indexed by the sequence number,
+ * which is grown if a message arrives too far ahead. Insertions, lookups and removals are O(1), and the memory used
+ * only depends on how far the stored messages are from the base watermark.
+ * The ring is not thread safe, callers synchronize on it.
+ */
+public class MessageRing {
+    private static final int INITIAL_CAPACITY = 256; //Needs to be a power of two
+
+    private int base;
+    private Message[] messages;
+
+
+    public MessageRing() {
+        this.base = 0;
+        this.messages = new Message[INITIAL_CAPACITY];
+    }
+
+
+    /**
+     * Doubles the capacity of the ring until it can hold the given sequence number
+     * @throws IllegalArgumentException if the sequence number is more than Message.MAX_SEQUENCE_GAP ahead
+     */
+    private void grow(int seq) {
+        if (seq - this.base > Message.MAX_SEQUENCE_GAP) {
+            throw new IllegalArgumentException("Sequence number " + seq + " is more than " + Message.MAX_SEQUENCE_GAP + " ahead of " + this.base);
+        }
+        Message[] oldMessages = this.messages;
+        int newLength = oldMessages.length;
+        while (newLength < seq - this.base) {
+            newLength <<= 1;
+        }
+        this.messages = new Message[newLength];
+        for (int i = this.base + 1; i <= this.base + oldMessages.length; i++) {
+            this.messages[i & (newLength - 1)] = oldMessages[i & (oldMessages.length - 1)];
+        }
+    }
+
+
+    /**
+     * Stores the message (messages at or below the base watermark are ignored)
+     * @param message message to store, identified by its sequence number
+     */
+    public void put(Message message) {
+        int seq = message.getValue();
+        if (seq <= this.base) {
+            return;
+        }
+        if (seq - this.base > this.messages.length) {
+            this.grow(seq);
+        }
+        this.messages[seq & (this.messages.length - 1)] = message;
+    }
+
+
+    /**
+     * @param seq sequence number of the message
+     * @return the stored message, or null if it is not stored
+     */
+    public Message get(int seq) {
+        if (seq <= this.base || seq - this.base > this.messages.length) {
+            return null;
+        }
+        return this.messages[seq & (this.messages.length - 1)];
+    }
+
+
+    /**
+     * @param seq sequence number of the message
+     * @return the removed message, or null if it is not stored
+     */
+    public Message remove(int seq) {
+        Message message = this.get(seq);
+        if (message != null) {
+            this.messages[seq & (this.messages.length - 1)] = null;
+        }
+        return message;
+    }
+
+
+    /**
+     * Moves the base watermark forward, dropping the messages up to it
+     * @param watermark new base watermark
+     */
+    public void release(int watermark) {
+        if (watermark - this.base >= this.messages.length) {
+            Arrays.fill(this.messages, null);
+            this.base = watermark;
+            return;
+        }
+        while (this.base < watermark) {
+            this.base++;
+            this.messages[this.base & (this.messages.length - 1)] = null;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package cs451.implementation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view over an encoded Message (see Message for the wire format). The view reads the fields directly from
+ * the buffer holding the received datagram, so the receive loop can inspect the type, the senders and the sequence
+ * number of every message (and process ack messages completely) without allocating anything. The view is re-pointed
+ * to the next message of the datagram with wrap, and the Message object is materialized only when it has to be kept.
+ * Wrapping a message decodes its varint value (and delivered watermark and echo for acks), the body of the message is decoded on demand.
+ * Datagrams come from the network, so the fields are not trusted: isValid checks that the message lies within the
+ * limit of the buffer and that its ids, clock indexes, selective ack words and payload size are in range, before any
+ * other field is used. Sequence numbers are only checked against the state of the receiver by LinkHost (see
+ * Message.MAX_SEQUENCE_GAP). A malformed message makes the view invalid instead of throwing.
+ */
+public class MessageView {
+    private final int hostsNumber;
+    private ByteBuffer buffer;
+    private int offset;
+    private int value;
+    private int delivered;
+    private int echo;
+    private int bodyOffset;
+    private int size;
+
+
+    /**
+     * @param hostsNumber number of hosts (length of the vector clock of data messages)
+     */
+    public MessageView(int hostsNumber) {
+        this.hostsNumber = hostsNumber;
+    }
+
+
+    /**
+     * Points the view to the message starting at the given offset of the buffer
+     * @param buffer buffer holding the encoded messages
+     * @param offset position of the first byte of the message (below the limit of the buffer)
+     * @return this view, whose fields can only be used once isValid returned true
+     */
+    public MessageView wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.bodyOffset = offset + Message.HEADER_SIZE;
+        this.size = -1;
+        this.delivered = 0;
+        this.echo = 0;
+        if (this.bodyOffset > buffer.limit()) {
+            this.value = -1;
+            return this;
+        }
+        this.value = this.nextVarint();
+        if (this.getDataType() == Message.ACK_MESSAGE) {
+            this.delivered = this.nextVarint();
+            this.echo = this.nextVarint();
+        }
+        return this;
+    }
+
+
+    /**
+     * Reads the varint at the body offset, and moves the body offset past it
+     * @return value of the varint, or -1 if it is longer than an int or runs past the limit of the buffer (valid
+     * fields are never negative)
+     */
+    private int nextVarint() {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (this.bodyOffset >= this.buffer.limit()) {
+                return -1;
+            }
+            byte b = this.buffer.get(this.bodyOffset++);
+            result |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * @return true if the viewed message is well formed: known type, ids of existing hosts, and every field within
+     * range and within the limit of the buffer
+     */
+    public boolean isValid() {
+        if (this.value < 0 || this.delivered < 0 || this.echo < 0) {
+            return false;
+        }
+        //Sequence numbers of data messages start at 1 (acks may carry the cumulative sequence number 0)
+        if (this.value == 0 && this.getDataType() == Message.DATA_MESSAGE) {
+            return false;
+        }
+        int originalSenderId = this.getOriginalSenderId();
+        int sourceSenderId = this.getSourceSenderId();
+        if (originalSenderId < 1 || originalSenderId > this.hostsNumber || sourceSenderId < 1 || sourceSenderId > this.hostsNumber) {
+            return false;
+        }
+        byte dataType = this.getDataType();
+        return (dataType == Message.DATA_MESSAGE || dataType == Message.ACK_MESSAGE) && this.getSize() > 0;
+    }
+
+
+    public byte getDataType() {
+        return this.buffer.get(this.offset);
+    }
+
+
+    public int getOriginalSenderId() {
+        return this.buffer.get(this.offset + 1) & 0xff;
+    }
+
+
+    public int getSourceSenderId() {
+        return this.buffer.get(this.offset + 2) & 0xff;
+    }
+
+
+    /**
+     * @return sequence number of the data message, or the cumulative sequence number of the ack message
+     */
+    public int getValue() {
+        return this.value;
+    }
+
+
+    /**
+     * @return delivered watermark piggybacked on the ack message
+     */
+    public int getDelivered() {
+        return this.delivered;
+    }
+
+
+    /**
+     * @return sequence number echoed by the ack message, see Message
+     */
+    public int getEcho() {
+        return this.echo;
+    }
+
+
+    /**
+     * @param word index of the word of the selective ack bitmap
+     * @return word of the selective ack bitmap of the ack message (omitted trailing words are zero)
+     */
+    public long getSelectiveAck(int word) {
+        //The number of words was checked by isValid
+        int words = this.buffer.get(this.bodyOffset);
+        return word < words ? this.buffer.getLong(this.bodyOffset + 1 + 8 * word) : 0;
+    }
+
+
+    /**
+     * @return number of bytes occupied by the message, i.e. distance to the next message of the datagram, 0 if the
+     * message is malformed
+     */
+    public int getSize() {
+        if (this.size < 0) {
+            this.size = this.getDataType() == Message.ACK_MESSAGE ? this.measureAck() : this.measureData();
+        }
+        return this.size;
+    }
+
+
+    /**
+     * @return size of the viewed ack message, 0 if its selective ack words are out of range
+     */
+    private int measureAck() {
+        if (this.bodyOffset >= this.buffer.limit()) {
+            return 0;
+        }
+        int words = this.buffer.get(this.bodyOffset);
+        int end = this.bodyOffset + 1 + 8 * words;
+        return words >= 0 && words <= Message.SACK_WORDS && end <= this.buffer.limit() ? end - this.offset : 0;
+    }
+
+
+    /**
+     * Walks the body of the viewed data message, checking its clock indexes and payload size. Varints are read by
+     * absolute index (no duplicate of the buffer), the body offset is restored afterwards.
+     * @return size of the viewed data message, 0 if it is malformed
+     */
+    private int measureData() {
+        int body = this.bodyOffset;
+        int size = 0;
+        int nonZero = this.nextVarint();
+        if (nonZero >= 0 && nonZero <= this.hostsNumber) {
+            boolean valid = true;
+            for (int i = 0; i < nonZero && valid; i++) {
+                int index = this.nextVarint();
+                valid = index >= 0 && index < this.hostsNumber && this.nextVarint() >= 0;
+            }
+            int trailingSize = valid ? this.nextVarint() : -1;
+            int payloadSize = trailingSize >= 0 ? this.nextVarint() : -1;
+            if (payloadSize >= 0 && payloadSize <= Message.MAX_PAYLOAD_SIZE && payloadSize <= this.buffer.limit() - this.bodyOffset) {
+                size = this.bodyOffset + payloadSize - this.offset;
+            }
+        }
+        this.bodyOffset = body;
+        return size;
+    }
+
+
+    /**
+     * @return Message object holding a copy of the viewed message. A payload of at most Message.PAYLOAD_COPY_THRESHOLD
+     * bytes is copied, a larger one is a read-only slice of the viewed buffer, which must then not be reused as long
+     * as the message is alive (see sharesBuffer)
+     */
+    public Message toMessage() {
+        ByteBuffer duplicate = this.buffer.duplicate();
+        duplicate.position(this.offset);
+        Message message = Message.decode(duplicate, this.hostsNumber);
+        if (!sharesBuffer(message)) {
+            message.copyPayload();
+        }
+        return message;
+    }
+
+
+    /**
+     * @param message message materialized by toMessage
+     * @return true if the payload of the message is a slice of the buffer it was materialized from
+     */
+    public static boolean sharesBuffer(Message message) {
+        return message.getPayloadSize() > Message.PAYLOAD_COPY_THRESHOLD;
+    }
+}
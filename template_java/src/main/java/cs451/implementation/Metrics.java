@@ -0,0 +1,195 @@
+package cs451.implementation;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics of a host, shared by all its layers (owned by the HostRuntime):
+ * <ul>
+ *     <li> Counters - striped LongAdders, so that counting on the hot path never contends between threads.
+ *     <li> Histograms - latencies in microseconds, recorded into a LatencyHistogram (each histogram is recorded by
+ *     one or two threads, so its lock is mostly uncontended).
+ *     <li> Gauges - values read only when the metrics are dumped (e.g. queue depths).
+ * </ul>
+ * Metrics are registered by name once (the layers keep the returned counters and histograms), and the hot path only
+ * updates them. A snapshot of all the metrics, sorted by name, can be dumped to a file periodically (cs451.metrics
+ * system property with the path of the file, cs451.metricsInterval with the period in milliseconds), and on request:
+ * creating the file with the path of the dump file followed by DUMP_REQUEST_SUFFIX (touch metrics.txt.request) makes
+ * the metrics-dumper stage delete it and dump a snapshot within DUMP_REQUEST_POLL milliseconds. Requests are files
+ * rather than a signal, as the JDK only exposes signal handlers through an internal API, whose handlers run on the
+ * signal dispatcher thread. Snapshots are appended to the file, each one starting with a line holding its time.
+ */
+public class Metrics {
+    public static final String DUMP_PATH = System.getProperty("cs451.metrics");
+    public static final long DUMP_INTERVAL = Long.getLong("cs451.metricsInterval", 1000);
+    public static final String DUMP_REQUEST_SUFFIX = ".request";
+    private static final long DUMP_REQUEST_POLL = 100; //Magic const
+
+    /**
+     * Histogram which can be recorded by several threads
+     */
+    public static final class Histogram {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+
+        /**
+         * @param value value to record
+         */
+        public void record(long value) {
+            synchronized (this.histogram) {
+                this.histogram.record(value);
+            }
+        }
+
+
+        /**
+         * Records the time elapsed since the start (in microseconds)
+         * @param startNanos start of the interval (System.nanoTime)
+         */
+        public void recordSince(long startNanos) {
+            this.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        }
+
+
+        /**
+         * @return copy of the histogram
+         */
+        public LatencyHistogram snapshot() {
+            LatencyHistogram copy = new LatencyHistogram();
+            synchronized (this.histogram) {
+                copy.add(this.histogram);
+            }
+            return copy;
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, LongAdder> counters;
+    private final ConcurrentSkipListMap<String, Histogram> histograms;
+    private final ConcurrentSkipListMap<String, LongSupplier> gauges;
+    private volatile boolean dumping;
+    private volatile String dumpPath;
+
+
+    public Metrics() {
+        this.counters = new ConcurrentSkipListMap<>();
+        this.histograms = new ConcurrentSkipListMap<>();
+        this.gauges = new ConcurrentSkipListMap<>();
+    }
+
+
+    /**
+     * @param name name of the counter
+     * @return counter of the given name, created on the first call
+     */
+    public LongAdder counter(String name) {
+        return this.counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+
+    /**
+     * @param name name of the histogram
+     * @return histogram of the given name, created on the first call
+     */
+    public Histogram histogram(String name) {
+        return this.histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+
+    /**
+     * Registers the gauge (replacing the gauge of the same name, if any)
+     * @param name name of the gauge
+     * @param gauge reads the current value, called by the thread which dumps the metrics
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        this.gauges.put(name, gauge);
+    }
+
+
+    /**
+     * Writes the snapshot of the metrics, one metric per line ("name value" for counters and gauges, and the count and
+     * percentiles for histograms)
+     * @param out stream to write to
+     */
+    public void dump(PrintStream out) {
+        out.println("# metrics " + System.currentTimeMillis());
+        for (Map.Entry<String, LongAdder> counter : this.counters.entrySet()) {
+            out.println(counter.getKey() + " " + counter.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> gauge : this.gauges.entrySet()) {
+            out.println(gauge.getKey() + " " + gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<String, Histogram> entry : this.histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue().snapshot();
+            out.println(entry.getKey() + " count=" + histogram.getCount() + " p50=" + histogram.getPercentile(50)
+                    + " p90=" + histogram.getPercentile(90) + " p99=" + histogram.getPercentile(99)
+                    + " p99.9=" + histogram.getPercentile(99.9) + " max=" + histogram.getMax());
+        }
+    }
+
+
+    /**
+     * Appends the snapshot of the metrics to the file
+     * @param path path of the file
+     */
+    public synchronized void dumpTo(String path) {
+        try (PrintStream out = new PrintStream(new FileOutputStream(path, true), false)) {
+            this.dump(out);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Dumps the metrics to the file every interval, and whenever a dump is requested (see DUMP_REQUEST_SUFFIX), until
+     * the shutdown of the metrics
+     * @param runtime runtime which owns the dumping thread
+     * @param path path of the file
+     * @param intervalMillis period of the dumps (in milliseconds), 0 to dump only on request
+     */
+    public void startDumping(HostRuntime runtime, String path, long intervalMillis) {
+        this.dumping = true;
+        this.dumpPath = path;
+        Path request = Paths.get(path + DUMP_REQUEST_SUFFIX);
+        long interval = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        long poll = TimeUnit.MILLISECONDS.toNanos(intervalMillis > 0 ? Math.min(intervalMillis, DUMP_REQUEST_POLL) : DUMP_REQUEST_POLL);
+        runtime.startStage("metrics-dumper", () -> {
+            long lastDump = System.nanoTime();
+            while (this.dumping) {
+                LockSupport.parkNanos(poll);
+                boolean requested = false;
+                try {
+                    requested = Files.deleteIfExists(request);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                long now = System.nanoTime();
+                if (this.dumping && (requested || intervalMillis > 0 && now - lastDump >= interval)) {
+                    this.dumpTo(path);
+                    lastDump = now;
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Stops the periodic dumps, and dumps the final snapshot if the metrics were dumped
+     */
+    public void shutdown() {
+        if (this.dumping) {
+            this.dumping = false;
+            this.dumpTo(this.dumpPath);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package cs451.implementation;
+
+import cs451.Host;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Broadcast on top of the URB which is shared by the FIFO and the localized causal broadcasts, and leaves them only
+ * their ordering policy:
+ * <ul>
+ *     <li> Broadcasting - payloads are split into fragments (see FragmentAssembler), the broadcast lock keeps the
+ *     fragments of a payload contiguous, and the broadcaster waits before each fragment until the congestion window of
+ *     every link has room for it. The subclass numbers the message of each fragment (see createMessage).
+ *     <li> Delivery - URB delivered messages are passed to the subclass (see urbDelivered), which hands them back in
+ *     its delivery order (see logDelivery and assemble). Complete payloads are then passed to the delivery listeners.
+ * </ul>
+ */
+public abstract class OrderedBroadcastHost implements BroadcastHost {
+    public Host me;
+    public UrbHost urbHost;
+    CopyOnWriteArrayList<Consumer<Message>> deliveryListeners;
+    FragmentAssembler fragmentAssembler;
+    boolean doLogging;
+    //Serializes the broadcasts, so that the fragments of a payload are sent one after the other
+    final Object broadcastLock=new Object();
+
+
+    /**
+     * @param urbHost urbHost which is used as the basis for the ordered delivery
+     */
+    protected OrderedBroadcastHost(UrbHost urbHost){
+        this.me=urbHost.me;
+        this.urbHost=urbHost;
+        this.deliveryListeners=new CopyOnWriteArrayList<>();
+        this.fragmentAssembler=new FragmentAssembler(this.getHostsNumber(), this::deliverPayload);
+    }
+
+
+    @Override
+    public Host getMe() {
+        return me;
+    }
+
+
+    /**
+     * @return number of hosts (i.e. possible original senders of the messages)
+     */
+    int getHostsNumber(){
+        return this.urbHost.linkHost.perfectLinks.size();
+    }
+
+
+    /**
+     * Passes the URB delivered message to the ordering policy, which delivers it once its predecessors were delivered
+     * @param message URB delivered message
+     */
+    protected abstract void urbDelivered(Message message);
+
+
+    /**
+     * Creates (and logs) the message of the next fragment broadcast by this host, called under the broadcast lock
+     * @param fragment fragment bytes, which are not copied
+     * @param trailingSize number of payload bytes carried by the next fragments
+     * @return message to send, numbered in the order of the calls
+     */
+    protected abstract Message createMessage(ByteBuffer fragment, int trailingSize);
+
+
+    /**
+     * Writes the delivery of the message to the output of the host (if logging is enabled)
+     * @param message delivered message
+     */
+    protected void logDelivery(Message message){
+        if (this.doLogging) {
+            this.me.logDelivery(message.getOriginalSenderId(), message.getValue());
+        }
+    }
+
+
+    /**
+     * Writes the broadcast of the message to the output of the host (if logging is enabled)
+     * @param seq sequence number of the broadcast message
+     */
+    protected void logBroadcast(int seq){
+        if (this.doLogging) {
+            this.me.logBroadcast(seq);
+        }
+    }
+
+
+    /**
+     * Passes the delivered message to the reassembly of the payloads, called in the delivery order
+     * @param message delivered message (fragment or unfragmented payload)
+     */
+    protected void assemble(Message message){
+        this.fragmentAssembler.add(message);
+    }
+
+
+    /**
+     * Passes the complete payload (unfragmented or reassembled message) to the application
+     * @param message delivered message carrying the whole payload
+     */
+    private void deliverPayload(Message message){
+        for(Consumer<Message> listener: this.deliveryListeners){
+            listener.accept(message);
+        }
+    }
+
+
+    @Override
+    public void addDeliveryListener(Consumer<Message> listener){
+        this.deliveryListeners.add(listener);
+    }
+
+
+    @Override
+    public void beginWorking(boolean doLogging){
+        this.doLogging=doLogging;
+        this.urbHost.linkHost.runtime.getMetrics().gauge("log.queueDepth", this.me::getLogQueueDepth);
+        this.fragmentAssembler.setMetrics(this.urbHost.linkHost.runtime.getMetrics());
+        this.urbHost.addDeliveryListener(this::urbDelivered);
+        //false-> don't do urb logging
+        this.urbHost.beginWorking(false);
+    }
+
+
+    /**
+     * Broadcasts the messages (with no payload). Before each message the broadcaster waits (without spinning) until
+     * the congestion window of every link has room for it, so the pace follows how fast the other hosts acknowledge
+     * the messages.
+     * @param messagesToSendNum number of messages to broadcast
+     */
+    @Override
+    public void beginBroadcasting(int messagesToSendNum) {
+        for (int i = 1; i <= messagesToSendNum; i++) {
+            try {
+                this.broadcast(Message.EMPTY_PAYLOAD);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Broadcasts the payload, split into fragments if it doesn't fit in a single message (see FragmentAssembler)
+     * @param payload payload bytes, which are not copied and must not be modified afterwards
+     * @return sequence number of the message carrying the last fragment
+     */
+    @Override
+    public int broadcast(ByteBuffer payload) throws InterruptedException {
+        synchronized (this.broadcastLock) {
+            return FragmentAssembler.broadcast(payload, this::broadcastFragment);
+        }
+    }
+
+
+    /**
+     * Broadcasts a message carrying a fragment. The message is sent outside of the locks of the subclass, which may be
+     * taken by the delivery stage: sending can wait for the delivery stage (full queue), the broadcast lock keeps the
+     * messages in order.
+     * @param fragment fragment bytes, which are not copied
+     * @param trailingSize number of payload bytes carried by the next fragments
+     * @return sequence number of the broadcast message
+     */
+    private int broadcastFragment(ByteBuffer fragment, int trailingSize) throws InterruptedException {
+        this.urbHost.awaitSendWindow();
+        Message messageToSend=this.createMessage(fragment, trailingSize);
+        this.urbHost.sendMessage(messageToSend);
+        return messageToSend.getValue();
+    }
+
+
+    @Override
+    public void shutdownHost(){
+        this.urbHost.shutdownHost();
+    }
+}
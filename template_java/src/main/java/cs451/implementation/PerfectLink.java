@@ -1,146 +1,370 @@
 package cs451.implementation;
 
 import cs451.Host;
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.util.HashMap;
-import java.util.concurrent.*;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Class which specifies PerfectLink semantics
+ * Messages sent over the link form one stream per original sender. Receiver acknowledges the streams instead of the
+ * single messages: one ack message carries the cumulative sequence number of the stream plus the selective ack bitmap,
+ * and is sent once ACK_THRESHOLD new messages of the stream are received, or at the next tick of the RetransmitWheel.
+ * The links of a host share their receive windows (see setReceiveWindows): an ack then covers every message the host
+ * has, whichever link it came from, and is also sent whenever the host received new messages of the stream, so that
+ * the destination learns which messages the host has without them being relayed to it.
+ * Such an ack can release a message the moment after it was sent (the destination got it from another host), so the
+ * acks are not timed by the messages they release: every ack echoes the last message of the stream the host received
+ * over the link, and only the release of that message (sent once, Karn's algorithm) gives an RTT sample.
+ * Data and ack messages going to the destination are packed into common datagrams by the MessageBatcher of the link.
+ * Once the link is given the FailureDetector of the host, a link which sent nothing for HEARTBEAT_INTERVAL sends the
+ * ack of the own stream of the host as a heartbeat, and while the destination is suspected the retransmissions to it
+ * are throttled to one every SUSPECTED_RETRANSMISSION_INTERVAL, and its congestion window doesn't block the broadcaster.
+ * Both intervals can be configured with the cs451.heartbeatInterval and cs451.suspectedRetransmissionInterval system
+ * properties (in milliseconds).
  */
-public class PerfectLink {
-    private static final int TIME_TO_WAIT = 150; //Magic const for timeout between sending
-    private static final int INITIAL_CAPACITY = 32; //Another magic constant for message buffers (deliveredMessages, unackedMessages)
+public class PerfectLink implements FailureDetector.Listener {
+    private static final int ACK_THRESHOLD = 32; //Number of received messages of a stream after which the ack is sent immediately
+    private static final int READVERTISE_TICKS = 50; //Number of ticks after which the acks of the streams which are not stable are sent again
+    //Fifth of the initial timeout of the FailureDetector, so that a few lost heartbeats don't make an idle link suspected
+    private static final long DEFAULT_HEARTBEAT_INTERVAL = 100;
+    private static final long HEARTBEAT_INTERVAL = TimeUnit.MILLISECONDS.toNanos(Long.getLong("cs451.heartbeatInterval", DEFAULT_HEARTBEAT_INTERVAL));
+    //Suspected destination still gets one retransmission per message every interval (in milliseconds): its ack restores
+    //a falsely suspected destination, while a crashed one costs a small fraction of the send budget
+    private static final long DEFAULT_SUSPECTED_RETRANSMISSION_INTERVAL = 2000;
+    private static final long SUSPECTED_RETRANSMISSION_INTERVAL = Long.getLong("cs451.suspectedRetransmissionInterval", DEFAULT_SUSPECTED_RETRANSMISSION_INTERVAL);
 
     Host source;
     Host destination;
-    ScheduledExecutorService sendService;
     //int[] sendVectorClock;
-    ExecutorService receiveService;
-    //We are now putting information of the form: (messageId, sourceSenderId, originalSenderId)
-    HashMap<Message, ScheduledFuture<?>> unackedMessages;
-    //We are now putting information of the form: (messageId, sourceSenderId, originalSenderId)
-    HashMap<Message, Boolean> deliveredMessages;
-    //Logger logger;
+    RetransmitWheel retransmitWheel;
+    RttEstimator rttEstimator;
+    CongestionWindow congestionWindow;
+    MessageBatcher batcher;
+    long[] ackBitmap;
+    //For each original sender: slots of the messages waiting for the ack, indexed by sequence number
+    SendWindow[] unackedMessages;
+    //For each original sender: sequence numbers of the messages received over the link (or by the host, if shared)
+    ReceiveWindow[] deliveredMessages;
+    //For each original sender: number of messages in the receive window when the last ack of the stream was sent
+    int[] advertisedMessages;
+    int ticks;
+    //For each original sender: number of messages received since the last ack of the stream was sent
+    AtomicIntegerArray pendingAcks;
+    //For each original sender: sequence number of the last message received over the link, echoed by the acks
+    AtomicIntegerArray echoedMessages;
+    //Delivered watermarks piggybacked on the acks, and the last one sent for each original sender
+    DeliveryWatermarks deliveryWatermarks;
+    int[] advertisedWatermarks;
+    FailureDetector failureDetector;
+    //Metrics of the link: data messages sent for the first time, retransmitted, received (and among them the ones
+    //the host already had), acks sent and received, and the ack round trip times of the host
+    LongAdder sentMessages;
+    LongAdder retransmittedMessages;
+    LongAdder receivedMessages;
+    LongAdder duplicateMessages;
+    LongAdder sentAcks;
+    LongAdder receivedAcks;
+    Metrics.Histogram ackRtt;
 
 
     /**
      * @param source Sender of messages
      * @param destination Recipient of messages
+     * @param hostsNumber Number of hosts (i.e. possible original senders of the messages)
+     * @param runtime runtime shared by all the links of the source (its RetransmitWheel resends unacknowledged
+     *                messages, and datagrams are assembled in the buffers of its pool)
      */
-    public PerfectLink(Host source,Host destination){
+    public PerfectLink(Host source,Host destination, int hostsNumber, HostRuntime runtime) throws UnknownHostException {
         this.source=source;
         this.destination=destination;
-        this.sendService=Executors.newSingleThreadScheduledExecutor();
-        this.receiveService=Executors.newSingleThreadExecutor();
-        this.unackedMessages=new HashMap<>(INITIAL_CAPACITY);
-        this.deliveredMessages=new HashMap<>(INITIAL_CAPACITY);
-
-
-
-
-//        this.logger = Logger.getLogger("Logger"+source.getId());
-//        //this.logger.setUseParentHandlers(false);
-//        //Logger parentLog= logger.getParent();
-//        //FileHandler fileHandler;
-//        this.logger = Logger.getLogger("Logger"+source.getId());
-//        //this.logger.setUseParentHandlers(false);
-//        //Logger parentLog= logger.getParent();
-//        //FileHandler fileHandler;
-//        /*if (parentLog!=null&&parentLog.getHandlers().length>0) {
-//            parentLog.removeHandler(parentLog.getHandlers()[0]);
-//        } */
-//        try {
-//            //String filename="process"+source.getId()+".txt";
-//            // the following statement is used to log any messages
-//            FileHandler handler=new FileHandler(source.getOutputAddr(), NO_LIMIT,1, true);
-//            BroadcastFormatter formatter=new BroadcastFormatter();
-//            handler.setFormatter(formatter);
-//            this.logger.addHandler(handler);
-//        } catch (IOException e) {
-//            e.printStackTrace();
-//        }
-//
-//        this.logger.setLevel(Level.OFF);
-    }
-
-    /**
-     * Sends data message (and keeps resending it) until the acknowledgement is received
+        this.retransmitWheel=runtime.getRetransmitWheel();
+        this.rttEstimator=new RttEstimator();
+        this.congestionWindow=new CongestionWindow();
+        this.batcher=new MessageBatcher(source, destination, runtime.getBufferPool());
+        this.ackBitmap=new long[Message.SACK_WORDS];
+        this.unackedMessages=new SendWindow[hostsNumber];
+        this.deliveredMessages=new ReceiveWindow[hostsNumber];
+        for(int i=0; i<hostsNumber; i++){
+            this.unackedMessages[i]=new SendWindow();
+            this.deliveredMessages[i]=new ReceiveWindow();
+        }
+        this.pendingAcks=new AtomicIntegerArray(hostsNumber);
+        this.echoedMessages=new AtomicIntegerArray(hostsNumber);
+        this.advertisedWatermarks=new int[hostsNumber];
+        this.advertisedMessages=new int[hostsNumber];
+        this.retransmitWheel.addTickTask(this::onTick);
+        Metrics metrics=runtime.getMetrics();
+        String prefix="link."+destination.getId()+".";
+        this.sentMessages=metrics.counter(prefix+"sent");
+        this.retransmittedMessages=metrics.counter(prefix+"retransmitted");
+        this.receivedMessages=metrics.counter(prefix+"received");
+        this.duplicateMessages=metrics.counter(prefix+"duplicates");
+        this.sentAcks=metrics.counter(prefix+"acksSent");
+        this.receivedAcks=metrics.counter(prefix+"acksReceived");
+        this.ackRtt=metrics.histogram("link.ackRtt.us");
+        this.batcher.setSentDatagrams(metrics.counter(prefix+"datagramsSent"));
+    }
+
+    /**
+     * Sends data message (and keeps resending it) until the acknowledgement is received.
+     * Resending is driven by the RetransmitWheel shared by all the links of the host, after the adaptive
+     * retransmission timeout of this link expires
      * @param message message to be relayed to the appropriate destination
      */
     public void sendDataMessage(Message message) {
-        System.out.println("In sendDataMessage, for message: "+message+" Sent to: "+destination.getId());
-        if (!this.unackedMessages.containsKey(message)) {
-            //System.out.println("In sendDataMessage (just before scheduling), for message: "+message+" Sent to: "+destination.getId());
-            ScheduledFuture<?> isDone = this.sendService.scheduleAtFixedRate(() -> {
-                //System.out.println("In sendDataMessage (now within loop), for message: "+message+" Sent to: "+destination.getId());
-                //System.out.println("In sendDataMessage: Starting to send packet, serializing: "+message);
-                byte[] messageBytes = Message.serializeMessage(message);
-
-                try {
-                    //System.out.println("In catch block");
-                    DatagramPacket packet = new DatagramPacket(messageBytes, messageBytes.length, destination.getAddress(), destination.getPort());
-                    //System.out.println("In sendDataMessage: Sending data message:" + message + " to: " + this.destination.getId());
-                    source.getSocket().send(packet);
-                } catch (IOException e) {
-                    System.err.println("Unable to send a message due to the socket error");
-                    e.printStackTrace();
+        SendWindow stream=this.unackedMessages[message.getOriginalSenderId()-1];
+        synchronized (stream) {
+            if (stream.contains(message.getValue())) {
+                return;
+            }
+            stream.put(message.getValue(), this.retransmitWheel.schedule(this, message, this.rttEstimator.backoff(1)));
+        }
+        this.sentMessages.increment();
+        if (Trace.DEBUG) {
+            Trace.record(Trace.DATA_SENT, message.getOriginalSenderId(), message.getValue(), message.getSourceSenderId(), this.destination.getId());
+        }
+        this.congestionWindow.onSend();
+        this.transmit(message);
+    }
+
+
+    /**
+     * Called by the RetransmitWheel once the message stayed unacknowledged for its timeout. Each retransmission of the
+     * same message doubles its timeout.
+     * @param slot slot of the wheel holding the message
+     */
+    void retransmit(RetransmitWheel.Slot slot) {
+        if (this.isDestinationSuspected()) {
+            this.retransmitWheel.reschedule(slot, SUSPECTED_RETRANSMISSION_INTERVAL);
+            return;
+        }
+        //Counted before the message is sent again, so that an ack of the retransmission never finds it sent once
+        int transmissions=slot.transmissions+1;
+        slot.transmissions=transmissions;
+        if (transmissions == 2) {
+            this.congestionWindow.onLoss(this.rttEstimator.getRetransmissionTimeout());
+        }
+        this.transmit(slot.getMessage());
+        this.retransmittedMessages.increment();
+        if (Trace.DEBUG) {
+            Trace.record(Trace.RETRANSMITTED, slot.getMessage().getOriginalSenderId(), slot.getMessage().getValue(), this.destination.getId(), transmissions);
+        }
+        this.retransmitWheel.reschedule(slot, this.rttEstimator.backoff(transmissions));
+    }
+
+
+    /**
+     * Stops the retransmission of all the messages acknowledged by the ack message (every message of the stream up to
+     * the cumulative sequence number, and the messages whose bits are set in the selective ack bitmap)
+     * @param ackMessage ack message received from the destination
+     */
+    public void acknowledge(MessageView ackMessage) {
+        SendWindow stream=this.unackedMessages[ackMessage.getOriginalSenderId()-1];
+        int cumulative=ackMessage.getValue();
+        int echo=ackMessage.getEcho();
+        //Released message the destination received from this link (if any), the only one the ack answers for sure
+        RetransmitWheel.Slot echoed=null;
+        int released=0;
+        synchronized (stream) {
+            RetransmitWheel.Slot acked;
+            while ((acked=stream.pollAcked(cumulative)) != null) {
+                echoed=this.release(acked, echo, echoed);
+                released++;
+            }
+            for (int w=0; w<Message.SACK_WORDS; w++) {
+                long word=ackMessage.getSelectiveAck(w);
+                while (word != 0) {
+                    int seq=cumulative+1+(w<<6)+Long.numberOfTrailingZeros(word);
+                    word&=word-1;
+                    RetransmitWheel.Slot slot=stream.remove(seq);
+                    if (slot != null) {
+                        echoed=this.release(slot, echo, echoed);
+                        released++;
+                    }
                 }
-                //return true;
-            }, 0, TIME_TO_WAIT, TimeUnit.MILLISECONDS); //(TODO: Maybe add more threads to executor, and/or reduce delay)
-            //0Pair<Integer,Integer> msgSenders=message.getSourceAndOriginalSender();
-            this.unackedMessages.put(message,isDone);
-            //System.out.println("For destination: " +this.destination.getId()+ " After putting new relay message, unackedMessages size: " +this.unackedMessages.size());
+            }
         }
+        this.receivedAcks.increment();
+        this.congestionWindow.onAck(released);
+        //Karn's algorithm: acks of retransmitted messages are ambiguous, so they are not used as samples. Messages
+        //released without being echoed may have reached the destination through other hosts, they give no sample
+        if (echoed != null && echoed.transmissions == 1) {
+            this.rttEstimator.addSample(System.nanoTime() - echoed.firstSentTime);
+            this.ackRtt.recordSince(echoed.firstSentTime);
+        }
+    }
+
 
+    /**
+     * Cancels the retransmission of the acknowledged message
+     * @param echo sequence number echoed by the ack
+     * @return the slot if it holds the echoed message, the echoed slot found so far otherwise
+     */
+    private RetransmitWheel.Slot release(RetransmitWheel.Slot slot, int echo, RetransmitWheel.Slot echoed) {
+        this.retransmitWheel.cancel(slot);
+        return slot.getMessage().getValue() == echo ? slot : echoed;
     }
 
 
+    /**
+     * Blocks the broadcaster until the congestion window of the link has room for one more message
+     */
+    public void awaitSendWindow() throws InterruptedException {
+        this.congestionWindow.awaitRoom();
+    }
 
 
     /**
-     * Sends ack message (and keeps resending) until the acknowledgement is received
-     * @param seqNum sequence number of the ack message which is sent
-     * @param originalSenderId who originally sent the message
+     * @return current retransmission timeout of the link (in milliseconds)
      */
-    public void sendAckMessage(int seqNum, int originalSenderId, int[] vectorClock) {
-        //this.sendService.execute();
-        this.sendService.execute(() -> {
-            //System.out.println("Starting to send packet");
-            byte byteOriginalSender=(byte) originalSenderId;
-            byte byteSourceSender=(byte) destination.getId();
-            byte[] messageBytes = Message.serializeMessage(seqNum, Message.ACK_MESSAGE, byteOriginalSender, byteSourceSender, vectorClock);
-            //DatagramPacket packet = new DatagramPacket(messageBytes, messageBytes.length, destination.getPort());
-            try {
-                //System.out.println("In catch block");
-                DatagramPacket packet = new DatagramPacket(messageBytes, messageBytes.length, destination.getAddress(), destination.getPort());
-                //Message message = new Message(seqNum, Message.ACK_MESSAGE, byteSourceSender, byteOriginalSender);
-                //System.out.println("Sending ack packet:" + message+" to: "+this.destination.getId());
-                source.getSocket().send(packet);
-            } catch (IOException e) {
-                System.err.println("Unable to send a message due to the socket error");
-                e.printStackTrace();
-            }
+    public long getRetransmissionTimeout() {
+        return this.rttEstimator.getRetransmissionTimeout();
+    }
+
 
-        });//(TODO: Maybe add more threads to executor, and/or reduce delay)
+    /**
+     * @return smoothed round trip time of the link (in milliseconds), negative if no ack was received yet
+     */
+    public double getSmoothedRtt() {
+        return this.rttEstimator.getSmoothedRtt();
+    }
+
+
+    private void transmit(Message message) {
+        this.batcher.add(message);
     }
 
 
     /**
-     * Delivers message received by the source and logs the delivery in the log file
-     * @param message Message to deliver and log it's delivery.
+     * Run at every tick of the RetransmitWheel: sends the delayed acks (and the heartbeat, if the link was idle), and
+     * flushes the messages waiting in the batch
      */
-    public void deliverMessage(Message message){
-        //this.source.log("d "+message.getByteSenderId()+" "+message.getValue());
-        this.deliveredMessages.put(message,true);
-        //System.out.println("Via PerfectLink: Delivered: "+message);
+    void onTick(){
+        this.flushAcks();
+        if(this.failureDetector!=null && System.nanoTime()-this.batcher.getLastSent()>=HEARTBEAT_INTERVAL){
+            this.sendAckMessage(this.source.getId());
+        }
+        this.batcher.flush();
     }
 
-    public void shutdownLink(){
-        this.receiveService.shutdownNow();
-        this.sendService.shutdownNow();
 
+    /**
+     * Sets the failure detector of the host, whose suspicions of the destination throttle the link
+     * @param failureDetector failure detector shared by all the links of the host
+     */
+    public void setFailureDetector(FailureDetector failureDetector) {
+        this.failureDetector=failureDetector;
+        failureDetector.addListener(this);
+    }
+
+
+    private boolean isDestinationSuspected() {
+        return this.failureDetector!=null && this.failureDetector.isSuspected(this.destination.getId());
+    }
+
+
+    @Override
+    public void onSuspect(int processId) {
+        if(processId==this.destination.getId()){
+            this.congestionWindow.setBypassed(true);
+        }
+    }
+
+
+    @Override
+    public void onRestore(int processId) {
+        if(processId==this.destination.getId()){
+            this.congestionWindow.setBypassed(false);
+        }
+    }
+
+
+    /**
+     * Sends the ack message for the stream of the given original sender, which acknowledges all the messages of the
+     * stream received so far. Ack messages are not resent, a lost ack is covered by the next one.
+     * @param originalSenderId who originally sent the messages of the stream
+     */
+    public void sendAckMessage(int originalSenderId) {
+        int index=originalSenderId-1;
+        this.pendingAcks.set(index, 0);
+        synchronized (this.batcher) {
+            this.advertisedMessages[index]=this.deliveredMessages[index].getReceived();
+            int cumulative=this.deliveredMessages[index].selectiveAcks(this.ackBitmap);
+            int delivered=this.deliveryWatermarks!=null ? this.deliveryWatermarks.getDelivered(originalSenderId) : 0;
+            this.advertisedWatermarks[index]=delivered;
+            this.batcher.addAck(cumulative, delivered, this.echoedMessages.get(index), (byte) originalSenderId, (byte) source.getId(), this.ackBitmap);
+        }
+        this.sentAcks.increment();
+    }
+
+
+    /**
+     * Sets the delivered watermarks of the host, which are piggybacked on the acks of the link
+     * @param deliveryWatermarks delivered watermarks shared by all the links of the host
+     */
+    public void setDeliveryWatermarks(DeliveryWatermarks deliveryWatermarks) {
+        this.deliveryWatermarks=deliveryWatermarks;
+    }
+
+
+    /**
+     * Sets the receive windows shared by all the links of the host, so that the acks of the link advertise all the
+     * messages the host has
+     * @param receivedMessages for each original sender: messages received by the host from any of the links
+     */
+    public void setReceiveWindows(ReceiveWindow[] receivedMessages) {
+        this.deliveredMessages=receivedMessages;
+    }
+
+
+    /**
+     * Sends the ack messages of all the streams which received messages (over this link or any other link sharing the
+     * receive window) since their last ack, or whose delivered watermark advanced since it was last sent (so the
+     * destination learns the final watermarks once the traffic stops). Acks are not resent, so the ack of every stream
+     * whose messages are not stable yet (delivered by every process which is not suspected) is sent again every
+     * READVERTISE_TICKS ticks, which covers the lost acks once the traffic stops.
+     * Called at every tick of the RetransmitWheel, so that the acks are delayed by at most one tick.
+     */
+    void flushAcks(){
+        boolean readvertise=this.deliveryWatermarks!=null && ++this.ticks%READVERTISE_TICKS==0 && !this.isDestinationSuspected();
+        for(int i=0; i<this.pendingAcks.length(); i++){
+            ReceiveWindow stream=this.deliveredMessages[i];
+            if(this.pendingAcks.get(i)>0 || stream.getReceived()!=this.advertisedMessages[i]
+                    || (this.deliveryWatermarks!=null && this.deliveryWatermarks.getDelivered(i+1)>this.advertisedWatermarks[i])
+                    || (readvertise && stream.getCumulative()>this.deliveryWatermarks.getStable(i+1))){
+                this.sendAckMessage(i+1);
+            }
+        }
+    }
+
+
+    /**
+     * Delivers message received over the link (duplicates are filtered out), and schedules the ack of its stream.
+     * Duplicates are acknowledged as well, as their retransmission means that the previous ack was lost.
+     * @param message view of the message received over the link
+     * @return true if the message was not delivered before (over any of the links sharing the receive window)
+     */
+    public boolean deliverMessage(MessageView message){
+        int index=message.getOriginalSenderId()-1;
+        boolean isNew=this.deliveredMessages[index].mark(message.getValue());
+        this.echoedMessages.lazySet(index, message.getValue());
+        this.receivedMessages.increment();
+        if(!isNew){
+            this.duplicateMessages.increment();
+        }
+        if(this.pendingAcks.incrementAndGet(index)>=ACK_THRESHOLD){
+            this.sendAckMessage(message.getOriginalSenderId());
+        }
+        return isNew;
+    }
+
+    /**
+     * Sends what is left in the batch of the link (the threads of the link are owned by the HostRuntime)
+     */
+    public void shutdownLink(){
+        this.batcher.flush();
     }
 
 
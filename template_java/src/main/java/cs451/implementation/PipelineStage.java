@@ -0,0 +1,125 @@
+package cs451.implementation;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Stage of the processing pipeline of a host: a single thread which takes the items of its bounded StageQueue, and
+ * handles them one by one. The state of a stage is only written by its thread, the other stages only pass items to
+ * it through the queue:
+ * <ul>
+ *     <li> Backpressure - put blocks the producer while the queue is full, so a slow stage slows down the stages
+ *     feeding it instead of growing an unbounded backlog.
+ *     <li> Idle stage - the thread parks when the queue is empty, and is unparked by the next put.
+ * </ul>
+ * Stages are registered in the HostRuntime, which exposes their queue depths. A handler must never wait for a stage
+ * downstream of it to put back into its own queue, as the stages would then wait for each other.
+ */
+public class PipelineStage<T> {
+    private static final long IDLE_PARK_NANOS = 1_000_000; //Magic const
+    private static final long FULL_PARK_NANOS = 10_000; //Magic const
+    private static final int FULL_SPINS = 100; //Magic const
+
+    private final String name;
+    private final StageQueue<T> queue;
+    private final Consumer<T> handler;
+    private volatile Thread thread;
+    private volatile boolean idle;
+    private volatile boolean running;
+
+
+    /**
+     * @param name name of the stage (and of its thread)
+     * @param capacity capacity of the queue of the stage (needs to be a power of two)
+     * @param handler called by the thread of the stage for every item, in the order of the puts
+     */
+    public PipelineStage(String name, int capacity, Consumer<T> handler) {
+        this.name = name;
+        this.queue = new StageQueue<>(capacity);
+        this.handler = handler;
+        //Items put before the start are kept until the stage starts
+        this.running = true;
+    }
+
+
+    /**
+     * Starts the thread of the stage and registers the stage in the runtime
+     * @param runtime runtime which owns the thread
+     */
+    public void start(HostRuntime runtime) {
+        runtime.registerStage(this);
+        this.thread = runtime.startStage(this.name, this::run);
+    }
+
+
+    /**
+     * Passes the item to the stage, waiting while the queue of the stage is full. Items put after the shutdown of the
+     * stage are dropped.
+     * @param item item to handle
+     */
+    public void put(T item) {
+        for (int attempt = 0; !this.queue.offer(item); attempt++) {
+            if (!this.running) {
+                return;
+            }
+            if (attempt < FULL_SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            }
+        }
+        if (this.idle) {
+            LockSupport.unpark(this.thread);
+        }
+    }
+
+
+    private void run() {
+        while (this.running) {
+            T item = this.queue.poll();
+            if (item == null) {
+                //Announce the parking before checking the queue again, so that a put in between unparks the stage (a
+                //missed unpark only delays the item by IDLE_PARK_NANOS)
+                this.idle = true;
+                item = this.queue.poll();
+                if (item == null) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    this.idle = false;
+                    continue;
+                }
+                this.idle = false;
+            }
+            try {
+                this.handler.accept(item);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    /**
+     * Stops the thread of the stage (without interrupting it) once it handled the current item, the items still in
+     * the queue are dropped
+     */
+    public void shutdown() {
+        this.running = false;
+        Thread stageThread = this.thread;
+        if (stageThread != null) {
+            LockSupport.unpark(stageThread);
+        }
+    }
+
+
+    public String getName() {
+        return this.name;
+    }
+
+
+    /**
+     * @return queue of the stage, which holds the depth metrics
+     */
+    public StageQueue<T> getQueue() {
+        return this.queue;
+    }
+}
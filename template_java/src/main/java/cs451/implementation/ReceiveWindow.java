@@ -0,0 +1,143 @@
+package cs451.implementation;
+
+/**
+ * Set of sequence numbers received on a single stream (e.g. messages of one original sender received over one link),
+ * kept as a cumulative sequence number plus a sliding bitset of the sequence numbers received above it.
+ * All the sequence numbers less or equal to the cumulative one were received, so the memory used by the window only
+ * depends on how far out of order the messages arrive, and not on the number of received messages.
+ * The bitset is a ring of longs indexed by the sequence number, it is grown if a message arrives too far ahead.
+ */
+public class ReceiveWindow {
+    private static final int INITIAL_WORDS = 8; //Initial capacity of the window (in longs), needs to be a power of two
+
+    private int cumulative;
+    private int received;
+    private long[] words;
+
+
+    public ReceiveWindow() {
+        this.cumulative = 0;
+        this.words = new long[INITIAL_WORDS];
+    }
+
+
+    private int capacity() {
+        return this.words.length << 6;
+    }
+
+
+    private boolean isSet(int seq) {
+        int index = seq & (this.capacity() - 1);
+        return (this.words[index >>> 6] & (1L << index)) != 0;
+    }
+
+
+    private void set(int seq) {
+        int index = seq & (this.capacity() - 1);
+        this.words[index >>> 6] |= 1L << index;
+    }
+
+
+    private void clear(int seq) {
+        int index = seq & (this.capacity() - 1);
+        this.words[index >>> 6] &= ~(1L << index);
+    }
+
+
+    /**
+     * Doubles the capacity of the ring until it can hold the given sequence number
+     * @throws IllegalArgumentException if the sequence number is more than Message.MAX_SEQUENCE_GAP ahead
+     */
+    private void grow(int seq) {
+        if (seq - this.cumulative > Message.MAX_SEQUENCE_GAP) {
+            throw new IllegalArgumentException("Sequence number " + seq + " is more than " + Message.MAX_SEQUENCE_GAP + " ahead of " + this.cumulative);
+        }
+        int oldCapacity = this.capacity();
+        long[] oldWords = this.words;
+        int newLength = this.words.length;
+        while (((long) newLength << 6) < seq - this.cumulative) {
+            newLength <<= 1;
+        }
+        this.words = new long[newLength];
+        for (int i = this.cumulative + 1; i <= this.cumulative + oldCapacity; i++) {
+            int index = i & (oldCapacity - 1);
+            if ((oldWords[index >>> 6] & (1L << index)) != 0) {
+                this.set(i);
+            }
+        }
+    }
+
+
+    /**
+     * Marks the sequence number as received
+     * @param seq sequence number of the received message
+     * @return true if the sequence number was not received before
+     */
+    public synchronized boolean mark(int seq) {
+        if (seq <= this.cumulative) {
+            return false;
+        }
+        if (seq - this.cumulative > this.capacity()) {
+            this.grow(seq);
+        }
+        if (this.isSet(seq)) {
+            return false;
+        }
+        this.set(seq);
+        this.received++;
+        while (this.isSet(this.cumulative + 1)) {
+            this.clear(this.cumulative + 1);
+            this.cumulative++;
+        }
+        return true;
+    }
+
+
+    /**
+     * @param seq sequence number to check
+     * @return true if the sequence number was received
+     */
+    public synchronized boolean contains(int seq) {
+        if (seq <= this.cumulative) {
+            return true;
+        }
+        return seq - this.cumulative <= this.capacity() && this.isSet(seq);
+    }
+
+
+    /**
+     * @return the highest sequence number such that all the sequence numbers up to it were received
+     */
+    public synchronized int getCumulative() {
+        return this.cumulative;
+    }
+
+
+    /**
+     * @return number of sequence numbers received so far (changes whenever a new sequence number is marked)
+     */
+    public synchronized int getReceived() {
+        return this.received;
+    }
+
+
+    /**
+     * Fills the bitmap of the sequence numbers received above the cumulative one, bit i of bitmap[w] stands for
+     * the sequence number cumulative + 1 + 64 * w + i
+     * @param bitmap array to fill
+     * @return cumulative sequence number the bitmap is relative to
+     */
+    public synchronized int selectiveAcks(long[] bitmap) {
+        for (int w = 0; w < bitmap.length; w++) {
+            long word = 0;
+            int base = this.cumulative + 1 + (w << 6);
+            for (int i = 0; i < 64 && base + i - this.cumulative <= this.capacity(); i++) {
+                if (this.isSet(base + i)) {
+                    word |= 1L << i;
+                }
+            }
+            bitmap[w] = word;
+        }
+        return this.cumulative;
+    }
+}
@@ -0,0 +1,238 @@
+package cs451.implementation;
+
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hashed timer wheel which drives the retransmissions of all the PerfectLinks of a host.
+ * Every unacknowledged data message occupies a single Slot of the wheel (instead of a ScheduledFuture and a lambda
+ * per message). The wheel is divided into WHEEL_SIZE buckets, each covering TICK_DURATION milliseconds, and a slot is
+ * placed in the bucket of the tick at which it expires (slots expiring more than one revolution in the future simply
+ * stay in the bucket until their round comes). One worker thread advances the wheel, collects all the slots which
+ * are due in the elapsed ticks and fires them in a batch, outside the lock. After each tick, the worker also runs the
+ * registered tick tasks (e.g. sending the delayed acks of the links).
+ *<ul>
+ *     <li> schedule - O(1), links the slot at the head of its bucket
+ *     <li> cancel - O(1), unlinks the slot from its bucket (used when the ack is received)
+ *</ul>
+ */
+public class RetransmitWheel {
+    private static final int TICK_DURATION = 10; //Duration of one tick (in milliseconds)
+    private static final int WHEEL_SIZE = 512; //Number of buckets, needs to be a power of two
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    private final Slot[] buckets;
+    private final long startTime;
+    private long currentTick;
+    private final CopyOnWriteArrayList<Runnable> tickTasks;
+    private volatile boolean running;
+
+
+    /**
+     * Slot of the wheel, holds a single message which is waiting for the acknowledgment on the given link
+     */
+    public static final class Slot {
+        final PerfectLink link;
+        final Message message;
+        long deadlineTick;
+        Slot prev;
+        Slot next;
+        boolean linked;
+        boolean cancelled;
+        //Used by the link to take RTT samples and to back off the retransmissions. Transmissions are only counted by
+        //the thread of the wheel, but read by the dispatcher (Karn's algorithm), hence volatile
+        final long firstSentTime;
+        volatile int transmissions;
+
+        private Slot(PerfectLink link, Message message) {
+            this.link = link;
+            this.message = message;
+            this.firstSentTime = System.nanoTime();
+            this.transmissions = 1;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+    }
+
+
+    /**
+     * Constructs the wheel, which starts firing once its worker is started (see start)
+     */
+    public RetransmitWheel() {
+        this.buckets = new Slot[WHEEL_SIZE];
+        this.startTime = System.nanoTime();
+        this.currentTick = 0;
+        this.running = true;
+        this.tickTasks = new CopyOnWriteArrayList<>();
+    }
+
+
+    /**
+     * Starts the worker of the wheel, which fires the retransmissions and runs the tick tasks
+     * @param runtime runtime which owns the worker thread
+     */
+    public void start(HostRuntime runtime) {
+        runtime.startStage("retransmit-wheel", this::advance);
+    }
+
+
+    /**
+     * Places the message in the wheel, so that it gets retransmitted over the link once the delay expires
+     * @param link PerfectLink over which the message is (re)transmitted
+     * @param message message waiting for the acknowledgment
+     * @param delay time (in milliseconds) after which the message is retransmitted
+     * @return slot holding the message, used to cancel or reschedule the retransmission
+     */
+    public Slot schedule(PerfectLink link, Message message, long delay) {
+        Slot slot = new Slot(link, message);
+        synchronized (this) {
+            this.link(slot, delay);
+        }
+        return slot;
+    }
+
+
+    /**
+     * Registers the task which is run by the worker thread after every tick
+     * @param task task to run
+     */
+    public void addTickTask(Runnable task) {
+        this.tickTasks.add(task);
+    }
+
+
+    /**
+     * Places the already fired slot back in the wheel, unless it was cancelled in the meantime
+     * @param slot slot to reschedule
+     * @param delay time (in milliseconds) after which the message is retransmitted again
+     */
+    public void reschedule(Slot slot, long delay) {
+        synchronized (this) {
+            if (!slot.cancelled) {
+                if (slot.linked) {
+                    this.unlink(slot);
+                }
+                this.link(slot, delay);
+            }
+        }
+    }
+
+
+    /**
+     * Removes the slot from the wheel, the message won't be retransmitted anymore
+     * @param slot slot to cancel
+     */
+    public void cancel(Slot slot) {
+        synchronized (this) {
+            slot.cancelled = true;
+            if (slot.linked) {
+                this.unlink(slot);
+            }
+        }
+    }
+
+
+    private long tickOf(long delay) {
+        long elapsed = (System.nanoTime() - this.startTime) / 1_000_000L + delay;
+        //Round up, message is never retransmitted before its delay expires
+        return Math.max(this.currentTick + 1, (elapsed + TICK_DURATION - 1) / TICK_DURATION);
+    }
+
+
+    private void link(Slot slot, long delay) {
+        slot.deadlineTick = this.tickOf(delay);
+        int index = (int) (slot.deadlineTick & MASK);
+        slot.prev = null;
+        slot.next = this.buckets[index];
+        if (slot.next != null) {
+            slot.next.prev = slot;
+        }
+        this.buckets[index] = slot;
+        slot.linked = true;
+    }
+
+
+    private void unlink(Slot slot) {
+        int index = (int) (slot.deadlineTick & MASK);
+        if (slot.prev != null) {
+            slot.prev.next = slot.next;
+        } else {
+            this.buckets[index] = slot.next;
+        }
+        if (slot.next != null) {
+            slot.next.prev = slot.prev;
+        }
+        slot.prev = null;
+        slot.next = null;
+        slot.linked = false;
+    }
+
+
+    /**
+     * Collects the slots which expired in the given bucket. Slots whose deadline is in one of the following rounds stay.
+     */
+    private void expireBucket(int index, long tick, ArrayList<Slot> expired) {
+        Slot slot = this.buckets[index];
+        while (slot != null) {
+            Slot next = slot.next;
+            if (slot.deadlineTick <= tick) {
+                this.unlink(slot);
+                expired.add(slot);
+            }
+            slot = next;
+        }
+    }
+
+
+    /**
+     * Main loop of the worker thread: waits for the next tick, collects expired slots and retransmits them in a batch
+     */
+    private void advance() {
+        ArrayList<Slot> expired = new ArrayList<>();
+        while (this.running) {
+            long nowTick = (System.nanoTime() - this.startTime) / 1_000_000L / TICK_DURATION;
+            synchronized (this) {
+                //If we fell behind for more than a revolution, a single pass over all the buckets is enough
+                long fromTick = Math.max(this.currentTick + 1, nowTick - MASK);
+                for (long tick = fromTick; tick <= nowTick; tick++) {
+                    this.expireBucket((int) (tick & MASK), nowTick, expired);
+                }
+                this.currentTick = Math.max(this.currentTick, nowTick);
+            }
+
+            for (Slot slot : expired) {
+                try {
+                    slot.link.retransmit(slot);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            expired.clear();
+
+            for (Runnable task : this.tickTasks) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+
+            try {
+                Thread.sleep(TICK_DURATION);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Stops the worker after its current tick. The worker is not interrupted: it sends over the channel of the host,
+     * and interrupting a thread blocked in a channel operation closes the channel.
+     */
+    public void shutdown() {
+        this.running = false;
+    }
+}
@@ -0,0 +1,85 @@
+package cs451.implementation;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Round trip time estimator of a single PerfectLink, used to compute the retransmission timeout (RTO) of the link.
+ * The estimation follows the standard SRTT/RTTVAR scheme (RFC 6298):
+ *<ul>
+ *     <li> SRTT = (1 - ALPHA) * SRTT + ALPHA * R
+ *     <li> RTTVAR = (1 - BETA) * RTTVAR + BETA * |SRTT - R|
+ *     <li> RTO = SRTT + max(GRANULARITY, K * RTTVAR), clamped to [MIN_RTO, MAX_RTO]
+ *</ul>
+ * Samples are taken only from messages which were transmitted once (Karn's algorithm), as the ack of a retransmitted
+ * message can't be matched to a particular transmission. Every retransmission of the same message doubles its timeout
+ * (exponential backoff), and a random jitter is added so that the retransmissions of different messages spread out.
+ */
+public class RttEstimator {
+    private static final long INITIAL_RTO = 150; //RTO used before the first sample (in milliseconds)
+    private static final long MIN_RTO = 20;
+    private static final long MAX_RTO = 3000;
+    private static final double GRANULARITY = 10; //Tick duration of the RetransmitWheel
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final int K = 4;
+    private static final int JITTER_DIVISOR = 4; //Jitter is at most 1/JITTER_DIVISOR of the timeout
+
+    private double smoothedRtt;
+    private double rttVariation;
+    private boolean hasSample;
+    private volatile long retransmissionTimeout;
+
+
+    public RttEstimator() {
+        this.hasSample = false;
+        this.retransmissionTimeout = INITIAL_RTO;
+    }
+
+
+    /**
+     * Updates the estimation with a new round trip time measurement
+     * @param rttNanos time between the (single) transmission of a message and the reception of its ack, in nanoseconds
+     */
+    public synchronized void addSample(long rttNanos) {
+        double rtt = rttNanos / 1_000_000.0;
+        if (!this.hasSample) {
+            this.smoothedRtt = rtt;
+            this.rttVariation = rtt / 2;
+            this.hasSample = true;
+        } else {
+            this.rttVariation = (1 - BETA) * this.rttVariation + BETA * Math.abs(this.smoothedRtt - rtt);
+            this.smoothedRtt = (1 - ALPHA) * this.smoothedRtt + ALPHA * rtt;
+        }
+        long rto = (long) Math.ceil(this.smoothedRtt + Math.max(GRANULARITY, K * this.rttVariation));
+        this.retransmissionTimeout = Math.min(MAX_RTO, Math.max(MIN_RTO, rto));
+    }
+
+
+    /**
+     * @return current retransmission timeout of the link, in milliseconds
+     */
+    public long getRetransmissionTimeout() {
+        return this.retransmissionTimeout;
+    }
+
+
+    /**
+     * @return smoothed round trip time of the link in milliseconds (negative if no sample was taken yet)
+     */
+    public synchronized double getSmoothedRtt() {
+        return this.hasSample ? this.smoothedRtt : -1;
+    }
+
+
+    /**
+     * Computes the delay before the next retransmission of a message
+     * @param transmissions number of times the message was already transmitted
+     * @return RTO * 2^(transmissions-1), capped to MAX_RTO, plus a random jitter (in milliseconds)
+     */
+    public long backoff(int transmissions) {
+        long timeout = this.retransmissionTimeout;
+        int shift = Math.min(Math.max(transmissions - 1, 0), 16);
+        timeout = Math.min(MAX_RTO, timeout << shift);
+        return timeout + ThreadLocalRandom.current().nextLong(timeout / JITTER_DIVISOR + 1);
+    }
+}
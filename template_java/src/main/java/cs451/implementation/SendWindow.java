@@ -0,0 +1,105 @@
+package cs451.implementation;
+
+/**
+ * Messages of a single stream (messages of one original sender sent over one link) waiting for their ack, indexed by
+ * sequence number. All the sequence numbers less or equal to the acked watermark were acknowledged cumulatively, the
+ * slots of the messages above it are kept in a ring indexed by the sequence number (grown if a message is sent too
+ * far ahead). Lookups, insertions and removals are O(1) and don't box the sequence numbers, and the memory used only
+ * depends on the number of messages in flight.
+ * The window is not thread safe, callers synchronize on it.
+ */
+public class SendWindow {
+    private static final int INITIAL_CAPACITY = 256; //Needs to be a power of two
+    //Sequence numbers are the own ones of the host, bounded by the congestion window, except towards a suspected
+    //destination (whose window is bypassed), so the capacity is only bounded by the largest array the ring can index
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private int acked;
+    private RetransmitWheel.Slot[] slots;
+
+
+    public SendWindow() {
+        this.acked = 0;
+        this.slots = new RetransmitWheel.Slot[INITIAL_CAPACITY];
+    }
+
+
+    /**
+     * Doubles the capacity of the ring until it can hold the given sequence number
+     * @throws IllegalStateException if more than MAX_CAPACITY messages would be waiting for their ack
+     */
+    private void grow(int seq) {
+        if (seq - this.acked > MAX_CAPACITY) {
+            throw new IllegalStateException("More than " + MAX_CAPACITY + " messages waiting for their ack");
+        }
+        RetransmitWheel.Slot[] oldSlots = this.slots;
+        int newLength = oldSlots.length;
+        while (newLength < seq - this.acked) {
+            newLength <<= 1;
+        }
+        this.slots = new RetransmitWheel.Slot[newLength];
+        for (int i = this.acked + 1; i <= this.acked + oldSlots.length; i++) {
+            this.slots[i & (newLength - 1)] = oldSlots[i & (oldSlots.length - 1)];
+        }
+    }
+
+
+    /**
+     * @param seq sequence number of the message
+     * @return true if the message is waiting for its ack, or was already acknowledged cumulatively
+     */
+    public boolean contains(int seq) {
+        if (seq <= this.acked) {
+            return true;
+        }
+        return seq - this.acked <= this.slots.length && this.slots[seq & (this.slots.length - 1)] != null;
+    }
+
+
+    /**
+     * @param seq sequence number of the sent message (above the acked watermark)
+     * @param slot slot of the wheel holding the message
+     */
+    public void put(int seq, RetransmitWheel.Slot slot) {
+        if (seq - this.acked > this.slots.length) {
+            this.grow(seq);
+        }
+        this.slots[seq & (this.slots.length - 1)] = slot;
+    }
+
+
+    /**
+     * Removes the message acknowledged selectively
+     * @param seq sequence number of the acknowledged message
+     * @return slot of the message, or null if it was not waiting for its ack
+     */
+    public RetransmitWheel.Slot remove(int seq) {
+        if (seq <= this.acked || seq - this.acked > this.slots.length) {
+            return null;
+        }
+        int index = seq & (this.slots.length - 1);
+        RetransmitWheel.Slot slot = this.slots[index];
+        this.slots[index] = null;
+        return slot;
+    }
+
+
+    /**
+     * Advances the acked watermark towards the cumulative sequence number, until it passes a message waiting for its
+     * ack. Called repeatedly until it returns null, it removes all the messages up to the cumulative sequence number.
+     * @param cumulative cumulative sequence number of the received ack
+     * @return slot of the next removed message, or null once the watermark reached the cumulative sequence number
+     */
+    public RetransmitWheel.Slot pollAcked(int cumulative) {
+        while (this.acked < cumulative) {
+            this.acked++;
+            int index = this.acked & (this.slots.length - 1);
+            RetransmitWheel.Slot slot = this.slots[index];
+            if (slot != null) {
+                this.slots[index] = null;
+                return slot;
+            }
+        }
+        return null;
+    }
+}
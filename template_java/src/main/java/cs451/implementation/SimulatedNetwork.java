@@ -0,0 +1,223 @@
+package cs451.implementation;
+
+import cs451.Host;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process network connecting hosts which run in the same JVM, in place of UDP. Every datagram is copied when sent
+ * and handed to the destination after a simulated delay, and the network can lose, duplicate and reorder datagrams,
+ * and crash hosts:
+ * <ul>
+ *     <li> loss - probability that a datagram is dropped
+ *     <li> duplicate - probability that a datagram is delivered twice (the copies get independent delays)
+ *     <li> reorder - probability that a datagram is held back for an extra 2 * (delay + jitter), so that the
+ *     datagrams sent after it overtake it
+ *     <li> delay, jitter - every datagram is delayed by delay plus a uniformly random part of jitter (milliseconds)
+ *     <li> crash - a crashed host neither sends nor receives anything anymore
+ * </ul>
+ * The decisions of every directed link are drawn from a random generator seeded with the seed of the network and the
+ * ids of the link ends, so the same sequence of datagrams sent over a link always suffers the same faults.
+ */
+public class SimulatedNetwork {
+    private static final long RECEIVE_POLL_TIMEOUT = 100; //Magic const (in milliseconds)
+
+    private final long seed;
+    private final double loss;
+    private final double duplicate;
+    private final double reorder;
+    private final long delay;
+    private final long jitter;
+    private final Endpoint[] endpoints;
+    private final AtomicLong sent;
+    private final AtomicLong dropped;
+    private final AtomicLong duplicated;
+
+
+    /**
+     * @param hostsNumber number of hosts (ids from 1 to hostsNumber)
+     * @param seed seed of the random decisions
+     * @param loss probability that a datagram is lost
+     * @param duplicate probability that a datagram is duplicated
+     * @param reorder probability that a datagram is held back
+     * @param delay minimal delay of a datagram (in milliseconds)
+     * @param jitter maximal random delay added to the minimal delay (in milliseconds)
+     */
+    public SimulatedNetwork(int hostsNumber, long seed, double loss, double duplicate, double reorder, long delay, long jitter) {
+        this.seed = seed;
+        this.loss = loss;
+        this.duplicate = duplicate;
+        this.reorder = reorder;
+        this.delay = TimeUnit.MILLISECONDS.toNanos(delay);
+        this.jitter = TimeUnit.MILLISECONDS.toNanos(jitter);
+        this.endpoints = new Endpoint[hostsNumber];
+        this.sent = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.duplicated = new AtomicLong();
+    }
+
+
+    /**
+     * Connects the host to the network: its transport is replaced by its endpoint
+     * @param host host to connect
+     */
+    public void attach(Host host) {
+        Endpoint endpoint = new Endpoint(host.getId());
+        this.endpoints[host.getId() - 1] = endpoint;
+        host.setTransport(endpoint);
+    }
+
+
+    /**
+     * Crashes the host: datagrams are not sent nor received by it anymore (including the ones already in flight)
+     * @param hostId id of the host
+     */
+    public void crash(int hostId) {
+        this.endpoints[hostId - 1].crashed = true;
+    }
+
+
+    public boolean isCrashed(int hostId) {
+        return this.endpoints[hostId - 1].crashed;
+    }
+
+
+    /**
+     * @return number of datagrams sent by the hosts (before the faults)
+     */
+    public long getSent() {
+        return this.sent.get();
+    }
+
+
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+
+    public long getDuplicated() {
+        return this.duplicated.get();
+    }
+
+
+    /**
+     * Datagram in flight, handed to the destination once its delay expires
+     */
+    private static final class Packet implements Delayed {
+        final long deliveryTime;
+        final byte[] data;
+
+
+        Packet(long deliveryTime, byte[] data) {
+            this.deliveryTime = deliveryTime;
+            this.data = data;
+        }
+
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(this.deliveryTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(this.deliveryTime, ((Packet) other).deliveryTime);
+        }
+    }
+
+
+    /**
+     * Transport of a single host over the simulated network. Received datagrams wait in the delay queue of the
+     * endpoint, which is drained by its receiver thread.
+     */
+    private final class Endpoint implements Transport {
+        private final int id;
+        private final Random[] links;
+        private final DelayQueue<Packet> inbox;
+        private volatile boolean crashed;
+        private volatile boolean running;
+
+
+        Endpoint(int id) {
+            this.id = id;
+            this.links = new Random[SimulatedNetwork.this.endpoints.length];
+            for (int i = 0; i < this.links.length; i++) {
+                this.links[i] = new Random(SimulatedNetwork.this.seed * 31 * 31 + id * 31L + i + 1);
+            }
+            this.inbox = new DelayQueue<>();
+        }
+
+
+        @Override
+        public void send(ByteBuffer datagram, Host destination) {
+            SimulatedNetwork network = SimulatedNetwork.this;
+            Endpoint target = network.endpoints[destination.getId() - 1];
+            network.sent.incrementAndGet();
+            if (this.crashed || target == null || target.crashed) {
+                network.dropped.incrementAndGet();
+                return;
+            }
+            byte[] data = new byte[datagram.remaining()];
+            datagram.get(data);
+            long now = System.nanoTime();
+            Random random = this.links[destination.getId() - 1];
+            synchronized (random) {
+                if (random.nextDouble() < network.loss) {
+                    network.dropped.incrementAndGet();
+                    return;
+                }
+                int copies = 1;
+                if (random.nextDouble() < network.duplicate) {
+                    network.duplicated.incrementAndGet();
+                    copies = 2;
+                }
+                for (int i = 0; i < copies; i++) {
+                    long packetDelay = network.delay + (long) (random.nextDouble() * network.jitter);
+                    if (random.nextDouble() < network.reorder) {
+                        packetDelay += 2 * (network.delay + network.jitter);
+                    }
+                    target.inbox.add(new Packet(now + packetDelay, data));
+                }
+            }
+        }
+
+
+        @Override
+        public void start(HostRuntime runtime, Dispatcher dispatcher) {
+            this.running = true;
+            runtime.startStage("simulated-receiver-" + this.id, () -> this.receive(dispatcher));
+        }
+
+
+        private void receive(Dispatcher dispatcher) {
+            while (this.running) {
+                Packet packet;
+                try {
+                    packet = this.inbox.poll(RECEIVE_POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (packet == null || this.crashed) {
+                    continue;
+                }
+                try {
+                    //Every packet has its own array, so retained datagrams need no special care
+                    dispatcher.dispatch(ByteBuffer.wrap(packet.data).asReadOnlyBuffer());
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+
+        @Override
+        public void shutdown() {
+            this.running = false;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package cs451.implementation;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue connecting the stages of the pipeline (see PipelineStage), with any number of producers and
+ * a single consumer. The slots are sequenced by a LongRing of width 0 (producers claim slots with a single CAS and the
+ * consumer never locks), and the items are kept in an array indexed by the slot. The ring keeps the metrics of the
+ * depth of the queue: the largest depth seen by a producer, and the number of offers which found the queue full.
+ */
+public class StageQueue<T> {
+    private final LongRing ring;
+    private final AtomicReferenceArray<T> items;
+
+
+    /**
+     * @param capacity number of slots of the ring (needs to be a power of two)
+     */
+    public StageQueue(int capacity) {
+        this.ring = new LongRing(capacity, 0);
+        this.items = new AtomicReferenceArray<>(capacity);
+    }
+
+
+    /**
+     * Adds the item at the tail of the queue, if the queue is not full
+     * @param item item to add (not null)
+     * @return false if the queue is full
+     */
+    public boolean offer(T item) {
+        long position = this.ring.claim();
+        if (position < 0) {
+            return false;
+        }
+        this.items.lazySet(this.ring.slot(position), item);
+        this.ring.publish(position);
+        return true;
+    }
+
+
+    /**
+     * Removes the item at the head of the queue, must only be called by the consumer
+     * @return removed item, or null if the queue is empty
+     */
+    public T poll() {
+        long position = this.ring.peek();
+        if (position < 0) {
+            return null;
+        }
+        int slot = this.ring.slot(position);
+        T item = this.items.get(slot);
+        this.items.lazySet(slot, null);
+        this.ring.release(position);
+        return item;
+    }
+
+
+    /**
+     * @return number of items in the queue (approximate while the queue is used)
+     */
+    public int getDepth() {
+        return this.ring.getDepth();
+    }
+
+
+    /**
+     * @return largest number of items which were in the queue at once
+     */
+    public int getMaxDepth() {
+        return this.ring.getMaxDepth();
+    }
+
+
+    /**
+     * @return number of offers which found the queue full (i.e. backpressure applied to the producers)
+     */
+    public long getFullOffers() {
+        return this.ring.getFullOffers();
+    }
+
+
+    public int getCapacity() {
+        return this.ring.getCapacity();
+    }
+}
@@ -0,0 +1,216 @@
+package cs451.implementation;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled, asynchronous, binary trace of the protocol events, in place of printing the messages to stdout (which
+ * serializes the threads on the lock of the PrintStream, and formats every message even when nobody reads it):
+ * <ul>
+ *     <li> Level - cs451.trace system property: off (default), info (suspicions), or debug (every data message sent,
+ *     relayed, retransmitted and URB delivered). Call sites are guarded by the INFO and DEBUG constants, which the JIT
+ *     folds (static final fields), so a disabled trace point is eliminated from the compiled code.
+ *     <li> Recording - an event is an id and four int arguments, put with its time into a bounded lock-free LongRing
+ *     (four longs per record). Recording never blocks nor allocates: events which find the ring full are dropped and
+ *     counted.
+ *     <li> Writing - the trace-writer thread drains the ring into the trace file (cs451.traceFile system property,
+ *     trace-PID.bin by default), as records of RECORD_SIZE bytes: time (long, System.nanoTime), event id (int), and the
+ *     four arguments (int). The file is decoded with: java cs451.implementation.Trace FILE
+ * </ul>
+ */
+public final class Trace {
+    public static final int OFF = 0;
+    public static final int INFO_LEVEL = 1;
+    public static final int DEBUG_LEVEL = 2;
+    public static final int LEVEL = parseLevel(System.getProperty("cs451.trace", "off"));
+    public static final boolean INFO = LEVEL >= INFO_LEVEL;
+    public static final boolean DEBUG = LEVEL >= DEBUG_LEVEL;
+
+    //Events (arguments in parentheses)
+    public static final int DATA_SENT = 0; //(original sender, seq, source sender, destination)
+    public static final int RELAYED = 1; //(original sender, seq, destination, 0)
+    public static final int RETRANSMITTED = 2; //(original sender, seq, destination, transmissions)
+    public static final int URB_DELIVERED = 3; //(original sender, seq, 0, 0)
+    public static final int SUSPECTED = 4; //(process, 0, 0, 0)
+    public static final int RESTORED = 5; //(process, 0, 0, 0)
+    private static final String[] EVENT_NAMES = {"DATA_SENT", "RELAYED", "RETRANSMITTED", "URB_DELIVERED", "SUSPECTED", "RESTORED"};
+
+    public static final int RECORD_SIZE = 28;
+    private static final int RING_SIZE = 1 << 16; //Needs to be a power of two
+    private static final int WRITE_BUFFER_RECORDS = 1024; //Magic const
+    private static final long IDLE_PARK_NANOS = 1_000_000; //Magic const
+
+    //Fields of a record of the ring
+    private static final int TIME = 0;
+    private static final int HEADER = 1; //Event id and first argument
+    private static final int ARGUMENTS = 2; //Second and third arguments
+    private static final int LAST_ARGUMENT = 3;
+    private static final LongRing ring = INFO ? new LongRing(RING_SIZE, 4) : null;
+    private static FileChannel file;
+    private static Thread writer;
+    private static volatile boolean closing;
+
+    static {
+        if (INFO) {
+            String path = System.getProperty("cs451.traceFile", "trace-" + ProcessHandle.current().pid() + ".bin");
+            try {
+                file = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                writer = new Thread(Trace::write, "trace-writer");
+                writer.setDaemon(true);
+                writer.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    private Trace() {
+    }
+
+
+    private static int parseLevel(String level) {
+        switch (level.toLowerCase()) {
+            case "debug":
+                return DEBUG_LEVEL;
+            case "info":
+                return INFO_LEVEL;
+            default:
+                return OFF;
+        }
+    }
+
+
+    /**
+     * Records the event, must only be called under the guard of its level (if (Trace.DEBUG) ...)
+     * @param event id of the event
+     * @param a first argument
+     * @param b second argument
+     * @param c third argument
+     * @param d fourth argument
+     */
+    public static void record(int event, int a, int b, int c, int d) {
+        if (closing || file == null) {
+            return;
+        }
+        long position = ring.claim();
+        if (position < 0) {
+            return;
+        }
+        ring.put(position, TIME, System.nanoTime());
+        ring.put(position, HEADER, (long) event << 32 | (a & 0xffffffffL));
+        ring.put(position, ARGUMENTS, (long) b << 32 | (c & 0xffffffffL));
+        ring.put(position, LAST_ARGUMENT, d);
+        ring.publish(position);
+    }
+
+
+    /**
+     * @return number of events dropped because the ring was full
+     */
+    public static long getDropped() {
+        return ring == null ? 0 : ring.getFullOffers();
+    }
+
+
+    /**
+     * Writes every event available in the ring into the buffer, and the buffer into the file whenever it is full
+     * @return number of written events
+     */
+    private static int drain(ByteBuffer buffer) throws IOException {
+        int written = 0;
+        for (long position = ring.peek(); position >= 0; position = ring.peek()) {
+            long header = ring.get(position, HEADER);
+            buffer.putLong(ring.get(position, TIME)).putInt((int) (header >>> 32)).putInt((int) header)
+                    .putLong(ring.get(position, ARGUMENTS)).putInt((int) ring.get(position, LAST_ARGUMENT));
+            ring.release(position);
+            if (!buffer.hasRemaining()) {
+                flushBuffer(buffer);
+            }
+            written++;
+        }
+        flushBuffer(buffer);
+        return written;
+    }
+
+
+    private static void flushBuffer(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            file.write(buffer);
+        }
+        buffer.clear();
+    }
+
+
+    private static void write() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_RECORDS * RECORD_SIZE);
+        try {
+            while (!closing) {
+                if (drain(buffer) == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+            drain(buffer);
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Stops recording, and waits until the recorded events are written to the file
+     */
+    public static void close() {
+        if (!INFO || writer == null || closing) {
+            return;
+        }
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Prints the records of the trace file, one event per line: time (microseconds since the first event), name of
+     * the event and its arguments
+     * @param args path of the trace file
+     */
+    public static void main(String[] args) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])))) {
+            long start = -1;
+            while (true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    return;
+                }
+                int event = in.readInt();
+                int a = in.readInt();
+                int b = in.readInt();
+                int c = in.readInt();
+                int d = in.readInt();
+                if (start < 0) {
+                    start = time;
+                }
+                String name = event >= 0 && event < EVENT_NAMES.length ? EVENT_NAMES[event] : "EVENT_" + event;
+                System.out.println((time - start) / 1000 + " " + name + " " + a + " " + b + " " + c + " " + d);
+            }
+        }
+    }
+}
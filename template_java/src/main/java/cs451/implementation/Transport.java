@@ -0,0 +1,47 @@
+package cs451.implementation;
+
+import cs451.Host;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Datagram transport of a host: sends the datagrams assembled by the MessageBatchers of its links, and passes the
+ * received datagrams to the LinkHost. The host uses UDP (UdpTransport) in deployment, and the endpoint of a
+ * SimulatedNetwork when several hosts run in the same JVM.
+ */
+public interface Transport {
+    /**
+     * Handles the received datagrams of the host
+     */
+    interface Dispatcher {
+        /**
+         * @param datagram received datagram (from its position to its limit)
+         * @return true if the buffer of the datagram is retained, i.e. messages keep slices of it (their large payloads,
+         * see MessageView.toMessage), so the buffer must not be reused by the transport
+         */
+        boolean dispatch(ByteBuffer datagram);
+    }
+
+
+    /**
+     * Sends the datagram (from its position to its limit), the buffer can be reused as soon as the call returns
+     * @param datagram datagram to send
+     * @param destination host to which the datagram is sent
+     */
+    void send(ByteBuffer datagram, Host destination) throws IOException;
+
+
+    /**
+     * Starts receiving the datagrams sent to the host
+     * @param runtime runtime of the host, which owns the threads of the transport
+     * @param dispatcher called for every received datagram by a single thread, the buffer is only valid during the call
+     *                   unless the dispatcher retains it
+     */
+    void start(HostRuntime runtime, Dispatcher dispatcher) throws IOException;
+
+
+    /**
+     * Stops receiving the datagrams (the datagrams can still be sent, e.g. to flush the batches)
+     */
+    void shutdown();
+}
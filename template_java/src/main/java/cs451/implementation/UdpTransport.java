@@ -0,0 +1,44 @@
+package cs451.implementation;
+
+import cs451.Host;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Transport over the UDP datagram channel of the host: datagrams are sent directly from the buffers of the batchers,
+ * and received by the DatagramReceiver.
+ */
+public class UdpTransport implements Transport {
+    private final DatagramChannel channel;
+    private DatagramReceiver receiver;
+
+
+    /**
+     * @param channel bound datagram channel of the host
+     */
+    public UdpTransport(DatagramChannel channel) {
+        this.channel = channel;
+    }
+
+
+    @Override
+    public void send(ByteBuffer datagram, Host destination) throws IOException {
+        this.channel.send(datagram, destination.getSocketAddress());
+    }
+
+
+    @Override
+    public void start(HostRuntime runtime, Dispatcher dispatcher) throws IOException {
+        this.receiver = new DatagramReceiver(this.channel, runtime.getDatagramSize(), dispatcher);
+        this.receiver.start(runtime);
+    }
+
+
+    @Override
+    public void shutdown() {
+        if (this.receiver != null) {
+            this.receiver.shutdown();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package cs451.implementation;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * URB acknowledgment table: for each message, identified by (originalSenderId, seq), the set of participants known to
+ * have the message (acker bitset), and their number.
+ * The table is striped per original sender, and every stripe keeps chunks of CHUNK_SIZE consecutive sequence numbers,
+ * so the entry of a message is located by two array lookups (no hashing, no boxing, no key object). Ackers are added
+ * lock-free (CAS on the word of the bitset, then increment of the counter only if the bit was not set before), so
+ * duplicate acks of the same participant are idempotent and the table can be updated by several receive threads.
+ * Only the allocation of a new chunk locks the stripe; chunk arrays are copied on growth and never modified once
+ * published.
+ * Chunks whose messages are all stable (URB delivered by every unsuspected process, see DeliveryWatermarks) are released, and
+ * acks of released messages are ignored, so the memory used by the table follows the messages not yet delivered
+ * everywhere instead of the whole history.
+ */
+public class UrbAckTable {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private final int words;
+    private final Stripe[] stripes;
+
+
+    /**
+     * Entries of CHUNK_SIZE consecutive messages: counter of message i, and its bitset in words [i*words, (i+1)*words)
+     */
+    private static final class Chunk {
+        final AtomicIntegerArray counts;
+        final AtomicLongArray ackers;
+
+        Chunk(int words) {
+            this.counts = new AtomicIntegerArray(CHUNK_SIZE);
+            this.ackers = new AtomicLongArray(CHUNK_SIZE * words);
+        }
+    }
+
+
+    /**
+     * Entries of the messages of a single original sender
+     */
+    private final class Stripe {
+        volatile Chunk[] chunks = new Chunk[0];
+        //Number of leading chunks which were released
+        volatile int releasedChunks = 0;
+
+        /**
+         * @return the chunk, allocated if needed, or null if it was released
+         */
+        Chunk chunk(int index) {
+            Chunk[] current = this.chunks;
+            if (index < current.length && current[index] != null) {
+                return current[index];
+            }
+            return this.allocate(index);
+        }
+
+        private synchronized Chunk allocate(int index) {
+            Chunk[] current = this.chunks;
+            if (index < this.releasedChunks) {
+                return null;
+            }
+            if (index < current.length && current[index] != null) {
+                return current[index];
+            }
+            Chunk[] grown = new Chunk[Math.max(index + 1, current.length)];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            grown[index] = new Chunk(UrbAckTable.this.words);
+            this.chunks = grown;
+            return grown[index];
+        }
+
+        synchronized void release(int chunkCount) {
+            if (chunkCount <= this.releasedChunks) {
+                return;
+            }
+            Chunk[] current = this.chunks;
+            Chunk[] compacted = current.clone();
+            for (int i = this.releasedChunks; i < Math.min(chunkCount, compacted.length); i++) {
+                compacted[i] = null;
+            }
+            this.releasedChunks = chunkCount;
+            this.chunks = compacted;
+        }
+    }
+
+
+    /**
+     * @param hostsNumber number of hosts (i.e. possible original senders and ackers of the messages)
+     */
+    public UrbAckTable(int hostsNumber) {
+        this.words = (hostsNumber + 63) >>> 6;
+        this.stripes = new Stripe[hostsNumber];
+        for (int i = 0; i < hostsNumber; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+
+    /**
+     * Records that the participant has the message
+     * @param originalSenderId id of the process which originally sent the message
+     * @param seq sequence number of the message
+     * @param ackerId id of the participant which has the message
+     * @return number of participants known to have the message if the participant was not known before, 0 otherwise
+     */
+    public int ack(int originalSenderId, int seq, int ackerId) {
+        int index = seq - 1;
+        Chunk chunk = this.stripes[originalSenderId - 1].chunk(index >>> CHUNK_BITS);
+        if (chunk == null) {
+            return 0;
+        }
+        int entry = index & (CHUNK_SIZE - 1);
+        int word = entry * this.words + ((ackerId - 1) >>> 6);
+        long bit = 1L << (ackerId - 1);
+        long old;
+        do {
+            old = chunk.ackers.get(word);
+            if ((old & bit) != 0) {
+                return 0;
+            }
+        } while (!chunk.ackers.compareAndSet(word, old, old | bit));
+        return chunk.counts.incrementAndGet(entry);
+    }
+
+
+    /**
+     * @param originalSenderId id of the process which originally sent the message
+     * @param seq sequence number of the message
+     * @param ackerId id of the participant
+     * @return true if the participant is known to have the message (always true for released messages)
+     */
+    public boolean hasAcked(int originalSenderId, int seq, int ackerId) {
+        int index = seq - 1;
+        Chunk chunk = this.stripes[originalSenderId - 1].chunk(index >>> CHUNK_BITS);
+        if (chunk == null) {
+            return true;
+        }
+        int word = (index & (CHUNK_SIZE - 1)) * this.words + ((ackerId - 1) >>> 6);
+        return (chunk.ackers.get(word) & (1L << (ackerId - 1))) != 0;
+    }
+
+
+    /**
+     * @param originalSenderId id of the process which originally sent the message
+     * @param seq sequence number of the message
+     * @return number of participants known to have the message (-1 for released messages)
+     */
+    public int get(int originalSenderId, int seq) {
+        int index = seq - 1;
+        Chunk chunk = this.stripes[originalSenderId - 1].chunk(index >>> CHUNK_BITS);
+        return chunk != null ? chunk.counts.get(index & (CHUNK_SIZE - 1)) : -1;
+    }
+
+
+    /**
+     * Releases the entries of the messages up to the stable watermark (only whole chunks are released)
+     * @param originalSenderId id of the process which originally sent the messages
+     * @param stable every message of the sender up to this sequence number was delivered by every unsuspected process
+     */
+    public void release(int originalSenderId, int stable) {
+        Stripe stripe = this.stripes[originalSenderId - 1];
+        int chunkCount = stable >>> CHUNK_BITS;
+        if (chunkCount > stripe.releasedChunks) {
+            stripe.release(chunkCount);
+        }
+    }
+}